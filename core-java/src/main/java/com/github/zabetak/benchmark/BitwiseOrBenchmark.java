@@ -24,12 +24,24 @@ import org.openjdk.jmh.runner.options.CommandLineOptions;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -71,12 +83,71 @@ public class BitwiseOrBenchmark {
          * The seed used to fill the pool with random values.
          */
         public int poolSeed = 33;
+
+        /**
+         * The fraction of the bits that are set. With 0.5 and runs of length 1 the
+         * bytes are filled at random, as {@link Random#nextBytes(byte[])} does. Run
+         * with "-p density=0.5,0.001" for sparse bitsets too.
+         */
+        @Param({"0.5"})
+        public double density;
+
+        /**
+         * The average length of the runs of set bits; 1 sets the bits independently,
+         * longer runs give clustered bitsets. Run with "-p runLength=1,256" for
+         * clustered bitsets too.
+         */
+        @Param({"1"})
+        public int runLength;
+
+        /** Fills the bytes of the next bitset of the pool */
+        public void fill(Random rand, byte[] bytes) {
+            if (density == 0.5 && runLength == 1) {
+                rand.nextBytes(bytes);
+                return;
+            }
+            if (density <= 0 || density > 1 || runLength < 1) {
+                throw new IllegalArgumentException("density (" + density + ") must be in (0, 1] and run length ("
+                        + runLength + ") positive");
+            }
+            // alternates runs and gaps, whose lengths are geometric with the means that give the density;
+            // an empty gap merges two runs
+            double meanGap = runLength * (1 - density) / density;
+            long pos = geometric(rand, meanGap);
+            while (pos < bitsetLength) {
+                long end = Math.min(bitsetLength, pos + 1 + geometric(rand, runLength - 1));
+                setRange(bytes, (int) pos, (int) end);
+                pos = end + geometric(rand, meanGap);
+            }
+        }
+
+        /** Returns a geometric random number from 0 on, with the given mean */
+        private static long geometric(Random rand, double mean) {
+            if (mean <= 0) {
+                return 0;
+            }
+            return (long) Math.floor(Math.log(1 - rand.nextDouble()) / Math.log(mean / (mean + 1)));
+        }
+
+        /** Sets the bits from 'from' to 'to' - 1, where bit i is bit i % 8 of bytes[i / 8] */
+        private static void setRange(byte[] bytes, int from, int to) {
+            for (int i = from; i < to; ) {
+                if ((i & 7) == 0 && to - i >= Byte.SIZE) {
+                    bytes[i >>> 3] = -1;
+                    i += Byte.SIZE;
+                } else {
+                    bytes[i >>> 3] |= 1 << (i & 7);
+                    i++;
+                }
+            }
+        }
     }
 
     @State(Scope.Benchmark)
     public static class ByteArrayPool {
 
         private byte[][] pool;
+        private LongBuffer[] longViews;
         private int entrySize;
 
         @Setup(Level.Trial)
@@ -84,14 +155,73 @@ public class BitwiseOrBenchmark {
             Random rand = new Random(config.poolSeed);
             entrySize = (int) Math.ceil(config.bitsetLength / 8.0);
             pool = new byte[config.bitsetPoolSize][entrySize];
+            longViews = new LongBuffer[config.bitsetPoolSize];
             for (int i = 0; i < config.bitsetPoolSize; i++) {
-                rand.nextBytes(pool[i]);
+                config.fill(rand, pool[i]);
+                longViews[i] = ByteBuffer.wrap(pool[i]).order(ByteOrder.nativeOrder()).asLongBuffer();
             }
         }
 
         public byte[] get(int index) {
             return pool[index % pool.length];
         }
+
+        /**
+         * Returns a view of the entry as longs. The view ignores the last
+         * entrySize % 8 bytes of the entry.
+         */
+        public LongBuffer getAsLongs(int index) {
+            return longViews[index % longViews.length];
+        }
+    }
+
+    /**
+     * The same bitsets as {@link ByteArrayPool}, with the bytes packed into longs
+     * in little-endian order, like {@link BitSet#valueOf(byte[])} does.
+     */
+    @State(Scope.Benchmark)
+    public static class LongArrayPool {
+
+        private long[][] pool;
+        private int entrySize;
+
+        @Setup(Level.Trial)
+        public void setup(BitSetPoolConfig config) {
+            Random rand = new Random(config.poolSeed);
+            entrySize = (int) Math.ceil(config.bitsetLength / 64.0);
+            pool = new long[config.bitsetPoolSize][entrySize];
+            byte[] tmp = new byte[(int) Math.ceil(config.bitsetLength / 8.0)];
+            for (int i = 0; i < config.bitsetPoolSize; i++) {
+                Arrays.fill(tmp, (byte) 0);
+                config.fill(rand, tmp);
+                toWords(tmp, pool[i]);
+            }
+        }
+
+        /** Packs the bytes into the words, in little-endian order */
+        static void toWords(byte[] tmp, long[] words) {
+            ByteBuffer bytes = ByteBuffer.wrap(tmp).order(ByteOrder.LITTLE_ENDIAN);
+            int w = 0;
+            while (bytes.remaining() >= Long.BYTES) {
+                words[w++] = bytes.getLong();
+            }
+            for (int shift = 0; bytes.hasRemaining(); shift += Byte.SIZE) {
+                words[w] |= (bytes.get() & 0xFFL) << shift;
+            }
+        }
+
+        public long[] get(int index) {
+            return pool[index % pool.length];
+        }
+
+        /** Returns the first n bitsets, as {@link #get(int)} does */
+        public long[][] select(int n) {
+            long[][] bitsets = new long[n][];
+            for (int i = 0; i < n; i++) {
+                bitsets[i] = get(i);
+            }
+            return bitsets;
+        }
     }
 
     @State(Scope.Benchmark)
@@ -107,7 +237,8 @@ public class BitwiseOrBenchmark {
             entrySize = config.bitsetLength;
             byte[] tmp = new byte[(int) Math.ceil(config.bitsetLength / 8.0)];
             for (int i = 0; i < config.bitsetPoolSize; i++) {
-                rand.nextBytes(tmp);
+                Arrays.fill(tmp, (byte) 0);
+                config.fill(rand, tmp);
                 pool[i] = BitSet.valueOf(tmp);
             }
         }
@@ -117,6 +248,199 @@ public class BitwiseOrBenchmark {
         }
     }
 
+    /**
+     * The same bitsets as {@link LongArrayPool}, in files that are mapped into
+     * memory, so the pool can be bigger than the heap. Every file holds the words
+     * of a bitset in little-endian order; the files are written once, in the
+     * directory of the system property "bitwise.or.pool.dir" or under the
+     * temporary directory, and reused by later trials with the same
+     * configuration. After the first union the files are read from the page cache.
+     */
+    @State(Scope.Benchmark)
+    public static class MappedPool {
+        static final String DIR_PROPERTY = "bitwise.or.pool.dir";
+
+        private LongBuffer[] pool;
+        private int entrySize;
+        /** The result of a union, in a mapped file that is deleted when the trial ends */
+        private LongBuffer result;
+
+        @Setup(Level.Trial)
+        public void setup(BitSetPoolConfig config) throws IOException {
+            Path dir = Paths.get(System.getProperty(DIR_PROPERTY,
+                    Paths.get(System.getProperty("java.io.tmpdir"), "bitwise-or-pool").toString()));
+            Files.createDirectories(dir);
+            entrySize = (int) Math.ceil(config.bitsetLength / 64.0);
+            long fileSize = (long) entrySize * Long.BYTES;
+            String prefix = String.format("%d-%s-%d-%d-", config.bitsetLength, config.density, config.runLength,
+                    config.poolSeed);
+            Path[] files = new Path[config.bitsetPoolSize];
+            boolean written = true;
+            for (int i = 0; i < files.length; i++) {
+                files[i] = dir.resolve(prefix + i + ".bits");
+                written &= Files.exists(files[i]) && Files.size(files[i]) == fileSize;
+            }
+            if (!written) {
+                // the bitsets are drawn in sequence, so all of them are written again
+                Random rand = new Random(config.poolSeed);
+                byte[] tmp = new byte[(int) Math.ceil(config.bitsetLength / 8.0)];
+                for (Path file : files) {
+                    Arrays.fill(tmp, (byte) 0);
+                    config.fill(rand, tmp);
+                    write(file, tmp, fileSize);
+                }
+            }
+            pool = new LongBuffer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                try (FileChannel channel = FileChannel.open(files[i], StandardOpenOption.READ)) {
+                    pool[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+                            .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                }
+            }
+            Path resultFile = Files.createTempFile(dir, "result-", ".bits");
+            try (FileChannel channel = FileChannel.open(resultFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+                result = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            }
+        }
+
+        /** Writes the bytes to a new file, padded with zeros to 'size' bytes */
+        private static void write(Path file, byte[] bytes, long size) throws IOException {
+            Path tmpFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                ByteBuffer padding = ByteBuffer.allocate((int) (size - bytes.length));
+                while (padding.hasRemaining()) {
+                    channel.write(padding);
+                }
+            }
+            // a run that is killed while writing leaves no partial bitset behind
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        public LongBuffer get(int index) {
+            return pool[index % pool.length];
+        }
+
+        /** Returns the first n bitsets, as {@link #get(int)} does */
+        public LongBuffer[] select(int n) {
+            LongBuffer[] bitsets = new LongBuffer[n];
+            for (int i = 0; i < n; i++) {
+                bitsets[i] = get(i);
+            }
+            return bitsets;
+        }
+
+        /** Returns the mapped result, cleared */
+        public LongBuffer clearedResult() {
+            for (int j = 0; j < entrySize; j++) {
+                result.put(j, 0L);
+            }
+            return result;
+        }
+    }
+
+    /** The same bitsets as {@link BitSetPool}, compressed with {@link CompressedBitmap} */
+    @State(Scope.Benchmark)
+    public static class CompressedBitmapPool {
+
+        private CompressedBitmap[] pool;
+        private long uncompressedBytes;
+        private long compressedBytes;
+
+        @Setup(Level.Trial)
+        public void setup(BitSetPoolConfig config) {
+            Random rand = new Random(config.poolSeed);
+            pool = new CompressedBitmap[config.bitsetPoolSize];
+            byte[] tmp = new byte[(int) Math.ceil(config.bitsetLength / 8.0)];
+            long[] words = new long[(int) Math.ceil(config.bitsetLength / 64.0)];
+            uncompressedBytes = (long) words.length * Long.BYTES;
+            for (int i = 0; i < config.bitsetPoolSize; i++) {
+                Arrays.fill(tmp, (byte) 0);
+                Arrays.fill(words, 0L);
+                config.fill(rand, tmp);
+                LongArrayPool.toWords(tmp, words);
+                pool[i] = CompressedBitmap.fromWords(words);
+                compressedBytes += pool[i].sizeInBytes();
+            }
+            compressedBytes /= config.bitsetPoolSize;
+        }
+
+        public CompressedBitmap get(int index) {
+            return pool[index % pool.length];
+        }
+
+        /** Returns the first n bitmaps, as {@link #get(int)} does */
+        public CompressedBitmap[] select(int n) {
+            CompressedBitmap[] bitmaps = new CompressedBitmap[n];
+            for (int i = 0; i < n; i++) {
+                bitmaps[i] = get(i);
+            }
+            return bitmaps;
+        }
+    }
+
+    /**
+     * The memory footprint of the compressed bitmaps, next to the bytes that a
+     * {@link BitSet} of the same length takes.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        /** The average bytes of a bitmap of the pool */
+        public long inputBytes;
+        /** The bytes of the union */
+        public long resultBytes;
+        /** The bytes of the words of a bitset */
+        public long uncompressedBytes;
+    }
+
+    /** A long-lived fork-join pool, which is shared by all invocations of a trial */
+    @State(Scope.Benchmark)
+    public static class ForkJoinState {
+        @Param({"1", "2", "4", "8"})
+        public int threads;
+
+        public ForkJoinPool pool;
+        public ParallelBitwiseOr engine;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            pool = new ForkJoinPool(threads);
+            engine = new ParallelBitwiseOr(pool);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class TileState {
+        /**
+         * The bytes of the result in a tile, or L1, L2 or L3 for a tile that is
+         * derived from the size of that cache level, see {@link TiledBitwiseOr}.
+         */
+        @Param({"L1", "L2", "L3", "4K", "16K", "64K", "256K", "1M", "4M"})
+        public String tileSize;
+
+        public TiledBitwiseOr kernel;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            if (tileSize.startsWith("L")) {
+                kernel = TiledBitwiseOr.forCacheLevel(Integer.parseInt(tileSize.substring(1)));
+            } else {
+                kernel = new TiledBitwiseOr((int) (TiledBitwiseOr.parseSize(tileSize) / Long.BYTES));
+            }
+        }
+    }
+
     @State(Scope.Benchmark)
     public static class BatchState {
         @Param({"8", "16", "32"})
@@ -246,6 +570,66 @@ public class BitwiseOrBenchmark {
         }
     }
 
+    /**
+     * Same as {@link #rowWiseWithByteArray}, but ORs eight bytes at a time. The
+     * bitset is looked up once per row, which lets the JIT vectorize the inner
+     * loop like the one of {@link BitSet#or(BitSet)}.
+     */
+    @Benchmark
+    public long[] rowWiseWithLongArray(InputState oState, LongArrayPool bitsetPool) {
+        final int len = bitsetPool.entrySize;
+        final long[] result = new long[len];
+        for (int i = 0; i < oState.nBitsets; i++) {
+            final long[] bitset = bitsetPool.get(i);
+            for (int j = 0; j < len; j++) {
+                result[j] |= bitset[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #rowWiseWithByteArray}, but reads the byte arrays through long
+     * views, so it needs no copy of the pool as longs.
+     */
+    @Benchmark
+    public ByteBuffer rowWiseWithLongBuffer(InputState oState, ByteArrayPool bitsetPool) {
+        final int len = bitsetPool.entrySize;
+        final ByteBuffer result = ByteBuffer.allocate(len).order(ByteOrder.nativeOrder());
+        final LongBuffer resultWords = result.asLongBuffer();
+        final int words = resultWords.capacity();
+        for (int i = 0; i < oState.nBitsets; i++) {
+            LongBuffer bitset = bitsetPool.getAsLongs(i);
+            for (int j = 0; j < words; j++) {
+                resultWords.put(j, resultWords.get(j) | bitset.get(j));
+            }
+            // the bytes that do not fill a whole long
+            for (int j = words * Long.BYTES; j < len; j++) {
+                result.put(j, (byte) (result.get(j) | bitsetPool.get(i)[j]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #customBatchWithByteArrayInParallel}, but on long words and
+     * with the threads of {@link ForkJoinState}, instead of a new thread pool for
+     * every union.
+     */
+    @Benchmark
+    public long[] forkJoinWithLongArray(InputState oState, LongArrayPool bitsetPool, ForkJoinState fState) {
+        return fState.engine.or(bitsetPool.select(oState.nBitsets), bitsetPool.entrySize);
+    }
+
+    /**
+     * Same as {@link #customBatchWithByteArray}, but on long words and with tiles
+     * of a fixed size instead of a fixed number of batches.
+     */
+    @Benchmark
+    public long[] tiledWithLongArray(InputState oState, LongArrayPool bitsetPool, TileState tState) {
+        return tState.kernel.or(bitsetPool.select(oState.nBitsets), bitsetPool.entrySize);
+    }
+
     @Benchmark
     public BitSet rowWiseWithBitSet(InputState oState, BitSetPool bitsetPool) {
         BitSet bitSet = new BitSet(bitsetPool.entrySize);
@@ -255,6 +639,45 @@ public class BitwiseOrBenchmark {
         return bitSet;
     }
 
+    /**
+     * Same as {@link #rowWiseWithLongArray}, but reads the bitsets from mapped
+     * files and writes the result into a mapped file.
+     */
+    @Benchmark
+    public LongBuffer rowWiseWithMappedFiles(InputState oState, MappedPool bitsetPool) {
+        final int len = bitsetPool.entrySize;
+        final LongBuffer result = bitsetPool.clearedResult();
+        for (int i = 0; i < oState.nBitsets; i++) {
+            final LongBuffer bitset = bitsetPool.get(i);
+            for (int j = 0; j < len; j++) {
+                result.put(j, result.get(j) | bitset.get(j));
+            }
+        }
+        return result;
+    }
+
+    /** Same as {@link #tiledWithLongArray}, but on mapped files like {@link #rowWiseWithMappedFiles} */
+    @Benchmark
+    public LongBuffer tiledWithMappedFiles(InputState oState, MappedPool bitsetPool, TileState tState) {
+        final LongBuffer result = bitsetPool.clearedResult();
+        tState.kernel.orInto(result, bitsetPool.select(oState.nBitsets), 0, bitsetPool.entrySize);
+        return result;
+    }
+
+    /**
+     * Same as {@link #rowWiseWithBitSet}, but on compressed bitmaps, which are
+     * ORed all at once, see {@link CompressedBitmap#or(CompressedBitmap...)}.
+     */
+    @Benchmark
+    public CompressedBitmap rowWiseWithCompressedBitmap(InputState oState, CompressedBitmapPool bitmapPool,
+            Footprint footprint) {
+        CompressedBitmap result = CompressedBitmap.or(bitmapPool.select(oState.nBitsets));
+        footprint.inputBytes = bitmapPool.compressedBytes;
+        footprint.resultBytes = result.sizeInBytes();
+        footprint.uncompressedBytes = bitmapPool.uncompressedBytes;
+        return result;
+    }
+
     private static final class Batch {
         public final int start;
         public final int end;
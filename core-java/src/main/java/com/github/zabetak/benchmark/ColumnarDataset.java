@@ -0,0 +1,168 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Rows that are stored column by column, with one long[] per field. The rows
+ * are sorted by their fields in ascending order, the first field first, and
+ * rows with equal fields by their position, so the order is stable.
+ * <p>
+ * The results are permutations of the row positions. Comparing two rows only
+ * reads the values of the columns at their positions, instead of following the
+ * references from a row object to its fields.
+ * </p>
+ */
+public class ColumnarDataset {
+    /** Ranges of rows up to this size are sorted by insertion */
+    static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final long[][] columns;
+    private final int rows;
+
+    public ColumnarDataset(long[][] columns) {
+        this.columns = columns;
+        this.rows = columns.length == 0 ? 0 : columns[0].length;
+        for (long[] column : columns) {
+            if (column.length != this.rows) {
+                throw new IllegalArgumentException("columns have different lengths");
+            }
+        }
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    /** Returns the positions of all rows, in sorted order */
+    public int[] sort() {
+        int[] perm = new int[this.rows];
+        for (int i = 0; i < perm.length; i++) {
+            perm[i] = i;
+        }
+        this.mergeSort(perm, new int[this.rows], 0, this.rows);
+        return perm;
+    }
+
+    /**
+     * Returns the positions of at most 'fetch' rows in sorted order, while
+     * skipping the first 'offset' ones. Keeps the smallest rows in a max-heap of
+     * positions.
+     */
+    public int[] topN(int fetch, int offset) {
+        int keep = (int) Math.min((long) fetch + offset, this.rows);
+        if (keep <= offset) {
+            return new int[0];
+        }
+
+        int[] heap = new int[keep];
+        for (int row = 0; row < keep; row++) {
+            heap[row] = row;
+            this.siftUp(heap, row);
+        }
+        for (int row = keep; row < this.rows; row++) {
+            // the row comes after all rows in the heap, so it loses ties
+            if (this.compare(row, heap[0]) < 0) {
+                heap[0] = row;
+                this.siftDown(heap, 0, keep);
+            }
+        }
+
+        for (int end = keep - 1; end > 0; end--) {
+            int max = heap[0];
+            heap[0] = heap[end];
+            heap[end] = max;
+            this.siftDown(heap, 0, end);
+        }
+        return offset == 0 ? heap : Arrays.copyOfRange(heap, offset, keep);
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    /** Compares two rows by their columns, and by their position if they are equal */
+    private int compare(int a, int b) {
+        for (long[] column : this.columns) {
+            int c = Long.compare(column[a], column[b]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a, b);
+    }
+
+    private void siftUp(int[] heap, int i) {
+        int row = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (this.compare(heap[parent], row) >= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = row;
+    }
+
+    private void siftDown(int[] heap, int i, int size) {
+        int row = heap[i];
+        int child;
+        while ((child = 2 * i + 1) < size) {
+            if (child + 1 < size && this.compare(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (this.compare(row, heap[child]) >= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = row;
+    }
+
+    private void mergeSort(int[] perm, int[] buffer, int from, int to) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int row = perm[i];
+                int j = i;
+                for (; j > from && this.compare(perm[j - 1], row) > 0; j--) {
+                    perm[j] = perm[j - 1];
+                }
+                perm[j] = row;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        this.mergeSort(perm, buffer, from, middle);
+        this.mergeSort(perm, buffer, middle, to);
+        if (this.compare(perm[middle - 1], perm[middle]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(perm, from, buffer, from, middle - from);
+        int left = from;
+        int right = middle;
+        int out = from;
+        while (left < middle && right < to) {
+            perm[out++] = this.compare(buffer[left], perm[right]) <= 0 ? buffer[left++] : perm[right++];
+        }
+        System.arraycopy(buffer, left, perm, out, middle - left);
+    }
+}
@@ -0,0 +1,341 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable compressed bitmap in the style of Roaring. The bits are split in
+ * chunks of 2^16 bits, and only the chunks that have bits set are stored, each
+ * one in the smallest of three containers:
+ * <ul>
+ * <li>an array container keeps the sorted positions of the set bits in the
+ * chunk, 2 bytes per bit;</li>
+ * <li>a bitmap container keeps the 1024 words of the chunk, 8KB;</li>
+ * <li>a run container keeps the start and the length of every run of set bits,
+ * 4 bytes per run.</li>
+ * </ul>
+ * <p>
+ * A union of many bitmaps walks the chunks in ascending order with a priority
+ * queue over the bitmaps, like the horizontal OR of the FastAggregation of
+ * Roaring. It ORs all containers of a chunk into a single buffer of 1024 words,
+ * and picks the container of the result before it moves on to the next chunk.
+ * </p>
+ */
+public final class CompressedBitmap {
+    static final int CHUNK_BITS = 1 << 16;
+    static final int CHUNK_WORDS = CHUNK_BITS / Long.SIZE;
+    /** Array containers with more bits would be bigger than a bitmap container */
+    static final int MAX_ARRAY_SIZE = 4096;
+    /** Estimated overhead of an object or array header and a reference to it */
+    static final int OBJECT_OVERHEAD = 16;
+
+    /** The chunk index of every container, ascending */
+    private final int[] keys;
+    private final Container[] containers;
+
+    private CompressedBitmap(int[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    /** Compresses the bits of the words, where bit i is bit i % 64 of words[i / 64] */
+    public static CompressedBitmap fromWords(long[] words) {
+        int chunks = (words.length + CHUNK_WORDS - 1) / CHUNK_WORDS;
+        int[] keys = new int[chunks];
+        Container[] containers = new Container[chunks];
+        long[] chunk = new long[CHUNK_WORDS];
+        int n = 0;
+        for (int key = 0; key < chunks; key++) {
+            int from = key * CHUNK_WORDS;
+            int len = Math.min(CHUNK_WORDS, words.length - from);
+            System.arraycopy(words, from, chunk, 0, len);
+            Arrays.fill(chunk, len, CHUNK_WORDS, 0L);
+            Container c = Container.of(chunk);
+            if (c != null) {
+                keys[n] = key;
+                containers[n++] = c;
+            }
+        }
+        return new CompressedBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /** Returns the union of the bitmaps */
+    public static CompressedBitmap or(CompressedBitmap... bitmaps) {
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, bitmaps.length),
+                Comparator.comparingInt(Cursor::key));
+        int maxKey = -1;
+        long totalKeys = 0;
+        for (CompressedBitmap b : bitmaps) {
+            if (b.keys.length > 0) {
+                queue.add(new Cursor(b));
+                maxKey = Math.max(maxKey, b.keys[b.keys.length - 1]);
+                totalKeys += b.keys.length;
+            }
+        }
+
+        int capacity = (int) Math.min(totalKeys, maxKey + 1);
+        int[] keys = new int[capacity];
+        Container[] containers = new Container[capacity];
+        long[] chunk = new long[CHUNK_WORDS];
+        int n = 0;
+        while (!queue.isEmpty()) {
+            int key = queue.peek().key();
+            Arrays.fill(chunk, 0L);
+            do {
+                Cursor c = queue.poll();
+                c.bitmap.containers[c.index].orInto(chunk);
+                if (++c.index < c.bitmap.keys.length) {
+                    queue.add(c);
+                }
+            } while (!queue.isEmpty() && queue.peek().key() == key);
+            keys[n] = key;
+            containers[n++] = Container.of(chunk);
+        }
+        return new CompressedBitmap(Arrays.copyOf(keys, n), Arrays.copyOf(containers, n));
+    }
+
+    /** Returns the bits as 'words' words, see {@link #fromWords(long[])} */
+    public long[] toWords(int words) {
+        long[] result = new long[words];
+        long[] chunk = new long[CHUNK_WORDS];
+        for (int i = 0; i < this.keys.length; i++) {
+            Arrays.fill(chunk, 0L);
+            this.containers[i].orInto(chunk);
+            int from = this.keys[i] * CHUNK_WORDS;
+            System.arraycopy(chunk, 0, result, from, Math.min(CHUNK_WORDS, words - from));
+        }
+        return result;
+    }
+
+    public long cardinality() {
+        long cardinality = 0;
+        for (Container c : this.containers) {
+            cardinality += c.cardinality();
+        }
+        return cardinality;
+    }
+
+    /** Returns an estimate of the bytes that the bitmap takes on the heap */
+    public long sizeInBytes() {
+        long size = 2L * OBJECT_OVERHEAD + (long) this.keys.length * (Integer.BYTES + OBJECT_OVERHEAD);
+        for (Container c : this.containers) {
+            size += c.sizeInBytes();
+        }
+        return size;
+    }
+
+    /** Returns the number of array, bitmap and run containers */
+    int[] containerCounts() {
+        int[] counts = new int[3];
+        for (Container c : this.containers) {
+            counts[c instanceof ArrayContainer ? 0 : c instanceof BitmapContainer ? 1 : 2]++;
+        }
+        return counts;
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    /** Points to the next container of a bitmap that is not ORed yet */
+    private static final class Cursor {
+        private final CompressedBitmap bitmap;
+        private int index = 0;
+
+        Cursor(CompressedBitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        int key() {
+            return this.bitmap.keys[this.index];
+        }
+    }
+
+    private abstract static class Container {
+
+        /** ORs the bits of the container into the words of its chunk */
+        abstract void orInto(long[] chunk);
+
+        abstract int cardinality();
+
+        abstract long sizeInBytes();
+
+        /**
+         * Returns the smallest container for the words of a chunk, or null if no bit
+         * is set.
+         */
+        static Container of(long[] chunk) {
+            int cardinality = 0;
+            int runs = 0;
+            long previous = 0;
+            for (long w : chunk) {
+                cardinality += Long.bitCount(w);
+                // a run starts at every set bit whose lower neighbour is not set
+                runs += Long.bitCount(w & ~((w << 1) | (previous >>> (Long.SIZE - 1))));
+                previous = w;
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            long arrayBytes = 2L * cardinality;
+            long runBytes = 4L * runs;
+            long bitmapBytes = 8L * CHUNK_WORDS;
+            if (runBytes < Math.min(arrayBytes, bitmapBytes)) {
+                return RunContainer.of(chunk, runs);
+            }
+            if (cardinality <= MAX_ARRAY_SIZE) {
+                return ArrayContainer.of(chunk, cardinality);
+            }
+            return new BitmapContainer(chunk.clone(), cardinality);
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        /** The positions of the set bits, ascending */
+        private final char[] values;
+
+        private ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        static ArrayContainer of(long[] chunk, int cardinality) {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < chunk.length; i++) {
+                for (long w = chunk[i]; w != 0; w &= w - 1) {
+                    values[n++] = (char) (i * Long.SIZE + Long.numberOfTrailingZeros(w));
+                }
+            }
+            return new ArrayContainer(values);
+        }
+
+        @Override
+        void orInto(long[] chunk) {
+            for (char v : this.values) {
+                chunk[v >>> 6] |= 1L << v;
+            }
+        }
+
+        @Override
+        int cardinality() {
+            return this.values.length;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 2L * OBJECT_OVERHEAD + (long) Character.BYTES * this.values.length;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private final int cardinality;
+
+        private BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        void orInto(long[] chunk) {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] |= this.words[i];
+            }
+        }
+
+        @Override
+        int cardinality() {
+            return this.cardinality;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 2L * OBJECT_OVERHEAD + (long) Long.BYTES * this.words.length;
+        }
+    }
+
+    private static final class RunContainer extends Container {
+        /** The start of each run, followed by its length - 1 */
+        private final char[] runs;
+
+        private RunContainer(char[] runs) {
+            this.runs = runs;
+        }
+
+        static RunContainer of(long[] chunk, int runCount) {
+            char[] runs = new char[2 * runCount];
+            int n = 0;
+            int i = 0;
+            long w = chunk[0];
+            while (n < runs.length) {
+                while (w == 0) {
+                    w = chunk[++i];
+                }
+                int start = i * Long.SIZE + Long.numberOfTrailingZeros(w);
+                // sets the zeros below the run, and looks for the first zero above it
+                w |= w - 1;
+                while (w == -1L && i + 1 < CHUNK_WORDS) {
+                    w = chunk[++i];
+                }
+                int end = w == -1L ? CHUNK_BITS : i * Long.SIZE + Long.numberOfTrailingZeros(~w);
+                runs[n++] = (char) start;
+                runs[n++] = (char) (end - start - 1);
+                // clears the run
+                w &= w + 1;
+            }
+            return new RunContainer(runs);
+        }
+
+        @Override
+        void orInto(long[] chunk) {
+            for (int r = 0; r < this.runs.length; r += 2) {
+                int from = this.runs[r];
+                int to = from + this.runs[r + 1] + 1;
+                int first = from >>> 6;
+                int last = (to - 1) >>> 6;
+                long firstMask = -1L << from;
+                long lastMask = -1L >>> -to;
+                if (first == last) {
+                    chunk[first] |= firstMask & lastMask;
+                } else {
+                    chunk[first] |= firstMask;
+                    for (int i = first + 1; i < last; i++) {
+                        chunk[i] = -1L;
+                    }
+                    chunk[last] |= lastMask;
+                }
+            }
+        }
+
+        @Override
+        int cardinality() {
+            int cardinality = 0;
+            for (int r = 1; r < this.runs.length; r += 2) {
+                cardinality += this.runs[r] + 1;
+            }
+            return cardinality;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 2L * OBJECT_OVERHEAD + (long) Character.BYTES * this.runs.length;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * A top-N accumulator that several threads can offer items to at the same
+ * time. The items are kept in a single {@link TopNHeap}, which is guarded by a
+ * lock, so there is no need to merge partial results at the end.
+ * <p>
+ * The threshold of the heap, see {@link TopNHeap#currentThreshold()}, is
+ * published in a volatile field. An item that is not smaller than it is
+ * rejected without taking the lock. Since the threshold only decreases, a stale
+ * value just lets through some items that the heap rejects afterwards.
+ * </p>
+ * <p>
+ * The result is not stable, since the order in which the threads offer equal
+ * items is not defined.
+ * </p>
+ *
+ * @param <TSource> type of the element that will be added to the heap
+ * @param <TKey> type of the key, which the comparator will use for comparisons
+ */
+public class ConcurrentTopNHeap<TSource, TKey> {
+    static final int BATCH_SIZE = 64;
+
+    private final Function<TSource, TKey> keyFn;
+    private final Comparator<TKey> cmp;
+    private final TopNHeap<TSource, TKey> heap;
+
+    /** The threshold of the heap, null as long as the heap is not full */
+    private volatile TKey threshold = null;
+
+    public ConcurrentTopNHeap(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int fetch,
+            int offset) {
+        this.keyFn = keySelector;
+        this.cmp = comparator;
+        this.heap = new TopNHeap<>(keySelector, comparator, fetch, offset);
+        this.heap.setThresholdListener(t -> this.threshold = t);
+    }
+
+    /**
+     * Offers a new item. Returns false if it was rejected, because it is not
+     * smaller than the threshold. Takes the lock for every item that is not
+     * rejected right away, see {@link Producer} for batched insertion.
+     */
+    public boolean offer(TSource o) {
+        if (this.beatsThreshold(o)) {
+            synchronized (this.heap) {
+                return this.heap.offer(o);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a producer that buffers the items of a single thread, which have to
+     * be offered to the heap.
+     */
+    public Producer newProducer() {
+        return new Producer();
+    }
+
+    /**
+     * Returns the same as {@link TopNHeap#getResult()}. All producers have to be
+     * flushed before.
+     */
+    public Object[] getResult() {
+        synchronized (this.heap) {
+            return this.heap.getResult();
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    private boolean beatsThreshold(TSource o) {
+        TKey t = this.threshold;
+        return t == null || this.cmp.compare(this.keyFn.apply(o), t) < 0;
+    }
+
+    /**
+     * Collects the items of one thread that beat the threshold, and inserts them
+     * into the heap in batches, so the lock is taken once per batch. A producer
+     * must not be shared between threads.
+     */
+    public class Producer {
+        private final Object[] batch = new Object[BATCH_SIZE];
+        private int size = 0;
+
+        private Producer() {
+        }
+
+        public void offer(TSource o) {
+            if (!beatsThreshold(o)) {
+                return;
+            }
+            this.batch[this.size++] = o;
+            if (this.size == this.batch.length) {
+                this.flush();
+            }
+        }
+
+        /** Inserts the buffered items into the heap */
+        public void flush() {
+            if (this.size == 0) {
+                return;
+            }
+            synchronized (heap) {
+                heap.offerAll(this.batch, 0, this.size);
+            }
+            Arrays.fill(this.batch, 0, this.size, null);
+            this.size = 0;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * Variant of {@link TopNHeap} where every node has 'arity' children instead of
+ * two. The tree is less deep, so offering an item touches fewer levels, at the
+ * cost of more comparisons per level to find the biggest child.
+ * <p>
+ * The root is stored at index arity - 1, so the children of every node start at
+ * an index that is a multiple of the arity. Thus the siblings do not straddle
+ * two groups of 'arity' slots, which keeps them within one cache line for the
+ * usual arities of 4 and 8.
+ * </p>
+ *
+ * @param <TSource> type of the element that will be added to the heap
+ * @param <TKey> type of the key, which the comparator will use for comparisons
+ */
+public class DAryTopNHeap<TSource, TKey> {
+    static final int MAX_INIT_ARRAY_SIZE = 1024;
+
+    private final Function<TSource, TKey> keyFn;
+    private final Comparator<TKey> cmp;
+    private final int arity;
+    private final int root;
+    private final int fetch;
+    private final int offset;
+    private final int maxSize;
+
+    TKey headKey = null;
+    int size = 0;
+    int time = Integer.MIN_VALUE;
+
+    /** Heap starting at index 'root', the slots before it are not used */
+    TSource[] heap;
+    /** Stores the order of arrival of the elements in the heap */
+    int[] order;
+
+    public DAryTopNHeap(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int arity, int fetch,
+            int offset) {
+        if (arity < 2) {
+            throw new IllegalArgumentException("arity must be at least 2, but was " + arity);
+        }
+        this.keyFn = keySelector;
+        this.cmp = comparator;
+        this.arity = arity;
+        this.root = arity - 1;
+        long tmp = (long) fetch + offset;
+        this.maxSize = tmp > Integer.MAX_VALUE - this.root ? Integer.MAX_VALUE - this.root : (int) tmp;
+
+        int arrayLen = this.maxSize + this.root;
+        if (arrayLen > 2 * MAX_INIT_ARRAY_SIZE) {
+            arrayLen = MAX_INIT_ARRAY_SIZE;
+        }
+
+        @SuppressWarnings("unchecked")
+        TSource[] t = (TSource[]) new Object[arrayLen];
+        this.heap = t;
+        this.order = new int[arrayLen];
+        this.fetch = fetch;
+        this.offset = offset;
+    }
+
+    /**
+     * Offers a new item to the heap. Returns false if it was rejected, because it
+     * is not smaller than the head.
+     */
+    public boolean offer(TSource o) {
+        if (this.size < this.maxSize) {
+            this.size++;
+            if (this.last() >= this.heap.length) {
+                this.growSize();
+            }
+
+            this.shiftUp(this.last(), o, this.time++);
+            return true;
+        }
+
+        TKey elKey = this.keyFn.apply(o);
+        if (this.cmp.compare(elKey, this.headKey) >= 0) {
+            return false;
+        }
+
+        this.shiftDown(this.root, o, this.time++, elKey);
+        return true;
+    }
+
+    /**
+     * Returns an array with at most 'fetch' entries, that contains the sorted
+     * entries of the items added to the heap, while skipping the first 'offset'
+     * elements.
+     */
+    public Object[] getResult() {
+        int len = Math.max(0, Math.min(this.size - this.offset, this.fetch));
+        Object[] result = new Object[len];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = this.poll();
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    /** Index of the last element of the heap */
+    private int last() {
+        return this.root + this.size - 1;
+    }
+
+    private int firstChild(int i) {
+        return this.arity * (i - this.root + 1);
+    }
+
+    private int parent(int i) {
+        return i / this.arity + this.root - 1;
+    }
+
+    private void growSize() {
+        int newLen = (int) Math.min(this.maxSize, this.heap.length * 2L) + this.root;
+        if (newLen * 2 > this.maxSize) {
+            newLen = this.maxSize + this.root;
+        }
+
+        this.heap = Arrays.copyOf(this.heap, newLen);
+        this.order = Arrays.copyOf(this.order, newLen);
+    }
+
+    private TSource poll() {
+        if (this.size <= 0) {
+            return null;
+        }
+
+        int last = this.last();
+        TSource result = this.heap[this.root];
+        TSource toMove = this.heap[last];
+        int toMoveTime = this.order[last];
+        this.heap[last] = null;
+        this.size--;
+        if (this.size > 0) {
+            this.shiftDown(this.root, toMove, toMoveTime, null);
+        } else {
+            this.headKey = null;
+        }
+        return result;
+    }
+
+    private void assign(int dst, TSource o, TKey key, int time) {
+        if (dst == this.root) {
+            this.headKey = key;
+        }
+        this.heap[dst] = o;
+        this.order[dst] = time;
+    }
+
+    private void shiftUp(int i, TSource toMove, int time) {
+        TKey movedKey = this.keyFn.apply(toMove);
+
+        int j = i;
+        while (j > this.root) {
+            int p = this.parent(j);
+
+            int c = this.cmp.compare(movedKey, this.keyFn.apply(this.heap[p]));
+            if (c < 0 || (c == 0 && time < this.order[p])) {
+                break;
+            }
+
+            this.heap[j] = this.heap[p];
+            this.order[j] = this.order[p];
+            j = p;
+        }
+        this.assign(j, toMove, movedKey, time);
+    }
+
+    private void shiftDown(int i, TSource toMove, int time, TKey toMoveKey) {
+        if (toMoveKey == null) {
+            toMoveKey = this.keyFn.apply(toMove);
+        }
+
+        int last = this.last();
+        int j = i;
+        do {
+            int first = this.firstChild(j);
+            if (first > last) {
+                break;
+            }
+
+            // find the biggest child, the later one wins if the keys are equal
+            int end = Math.min(first + this.arity - 1, last);
+            int biggest = first;
+            TKey biggestKey = this.keyFn.apply(this.heap[first]);
+            for (int k = first + 1; k <= end; k++) {
+                TKey kKey = this.keyFn.apply(this.heap[k]);
+                int c = this.cmp.compare(kKey, biggestKey);
+                if (c > 0 || (c == 0 && this.order[k] > this.order[biggest])) {
+                    biggest = k;
+                    biggestKey = kKey;
+                }
+            }
+
+            int c = this.cmp.compare(toMoveKey, biggestKey);
+            if (c > 0 || (c == 0 && time > this.order[biggest])) {
+                break;
+            }
+
+            this.assign(j, this.heap[biggest], biggestKey, this.order[biggest]);
+            j = biggest;
+        } while (true);
+        this.assign(j, toMove, toMoveKey, time);
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.github.zabetak.benchmark.PartialSortBenchmark.FieldType;
+
+/**
+ * Generates the fields of the tuples of a benchmark, such that their keys
+ * follow a {@link Distribution}.
+ * <p>
+ * Except for RANDOM, a distribution produces a rank in [0, keySpace) for every
+ * tuple, and the rank decides the order of the tuple. INT ranks are split into
+ * one digit in [0, maxInt) per field, the most significant one first. DATE
+ * ranks only decide the first field, the other fields are random.
+ * </p>
+ */
+public class DataGenerator {
+
+    /** The order in which the keys of the tuples arrive */
+    public enum Distribution {
+        /** Every field is drawn uniformly at random */
+        RANDOM,
+        ASCENDING,
+        DESCENDING,
+        /** Ascending runs of sqrt(n) tuples */
+        SAWTOOTH,
+        ALL_EQUAL,
+        /** Targets the partial inserts of LimitSort, see {@link #adversarialRanks} */
+        ADVERSARIAL,
+        /**
+         * Few keys are very frequent. The ranks follow a Zipf distribution with
+         * exponent 1 and are hashed, so that the frequent keys are spread over the
+         * key space.
+         */
+        ZIPF,
+        /** Ascending, but 1% of the tuples are swapped with a random other tuple */
+        NEARLY_SORTED,
+        /** Only MANY_DUPLICATES_KEYS different keys, spread over the key space */
+        MANY_DUPLICATES,
+        /** Runs of CLUSTER_SIZE tuples with keys close to each other */
+        CLUSTERED
+    }
+
+    /** Number of positions between the keys of a round, see {@link #adversarialRanks} */
+    static final int ADVERSARIAL_GAP = 500;
+    static final int MANY_DUPLICATES_KEYS = 16;
+    static final int CLUSTER_SIZE = 1000;
+    /** The fraction of the key space that the keys of a cluster cover */
+    static final double CLUSTER_WIDTH = 0.001;
+
+    private final FieldType fieldType;
+    private final int fieldsNumber;
+    private final int maxInt;
+    private final Random rand;
+
+    public DataGenerator(FieldType fieldType, int fieldsNumber, int maxInt, long seed) {
+        this.fieldType = fieldType;
+        this.fieldsNumber = fieldsNumber;
+        this.maxInt = maxInt;
+        this.rand = new Random(seed);
+    }
+
+    /**
+     * Returns the fields of n tuples. 'keep' is the number of tuples a top-N has
+     * to keep, or -1 if all of them, which ADVERSARIAL needs to know.
+     */
+    public List<List<Comparable>> generate(Distribution distribution, int n, int keep) {
+        List<List<Comparable>> tuples = new ArrayList<>(n);
+        if (distribution == Distribution.RANDOM) {
+            for (int i = 0; i < n; i++) {
+                List<Comparable> fields = new ArrayList<>(this.fieldsNumber);
+                for (int j = 0; j < this.fieldsNumber; j++) {
+                    fields.add(this.randomField());
+                }
+                tuples.add(fields);
+            }
+            return tuples;
+        }
+
+        for (long rank : this.ranks(distribution, n, keep)) {
+            Comparable[] values = new Comparable[this.fieldsNumber];
+            for (int j = this.fieldsNumber - 1; j >= 0; j--) {
+                switch (this.fieldType) {
+                    case INT:
+                        values[j] = (int) (rank % this.maxInt);
+                        rank /= this.maxInt;
+                        break;
+                    case DATE:
+                        values[j] = j == 0 ? new Date(rank) : this.randomField();
+                        break;
+                }
+            }
+            tuples.add(new ArrayList<>(Arrays.asList(values)));
+        }
+        return tuples;
+    }
+
+    /** The number of different ranks */
+    long keySpace() {
+        if (this.fieldType == FieldType.INT) {
+            return (long) Math.min(Math.pow(this.maxInt, this.fieldsNumber), Long.MAX_VALUE / 2);
+        }
+        return Long.MAX_VALUE / 2;
+    }
+
+    /** Returns the ranks of n tuples, see {@link #generate} */
+    long[] ranks(Distribution distribution, int n, int keep) {
+        long keySpace = this.keySpace();
+        double step = (double) keySpace / n;
+        long[] ranks = new long[n];
+        switch (distribution) {
+            case ASCENDING:
+                for (int i = 0; i < n; i++) {
+                    ranks[i] = (long) (i * step);
+                }
+                break;
+            case DESCENDING:
+                for (int i = 0; i < n; i++) {
+                    ranks[i] = (long) ((n - 1 - i) * step);
+                }
+                break;
+            case SAWTOOTH:
+                int period = Math.max(2, (int) Math.sqrt(n));
+                for (int i = 0; i < n; i++) {
+                    ranks[i] = (long) (i % period * ((double) keySpace / period));
+                }
+                break;
+            case ALL_EQUAL:
+                break;
+            case ADVERSARIAL:
+                return adversarialRanks(n, keySpace, keep);
+            case ZIPF:
+                for (int i = 0; i < n; i++) {
+                    // inverse of the CDF of 1/x on [1, keySpace + 1)
+                    long r = (long) Math.pow(keySpace + 1.0, this.rand.nextDouble()) - 1;
+                    ranks[i] = Math.floorMod(r * 0x9E3779B97F4A7C15L, keySpace);
+                }
+                break;
+            case NEARLY_SORTED:
+                for (int i = 0; i < n; i++) {
+                    ranks[i] = (long) (i * step);
+                }
+                for (int s = 0; s < n / 100; s++) {
+                    int a = this.rand.nextInt(n);
+                    int b = this.rand.nextInt(n);
+                    long tmp = ranks[a];
+                    ranks[a] = ranks[b];
+                    ranks[b] = tmp;
+                }
+                break;
+            case MANY_DUPLICATES:
+                long distance = Math.max(1, keySpace / MANY_DUPLICATES_KEYS);
+                for (int i = 0; i < n; i++) {
+                    ranks[i] = Math.min(keySpace - 1, this.rand.nextInt(MANY_DUPLICATES_KEYS) * distance);
+                }
+                break;
+            case CLUSTERED:
+                long width = Math.max(1, (long) (keySpace * CLUSTER_WIDTH));
+                long start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (i % CLUSTER_SIZE == 0) {
+                        start = (long) (this.rand.nextDouble() * (keySpace - width));
+                    }
+                    ranks[i] = start + (long) (this.rand.nextDouble() * width);
+                }
+                break;
+            default:
+                throw new AssertionError(distribution);
+        }
+        return ranks;
+    }
+
+    private Comparable randomField() {
+        switch (this.fieldType) {
+            case INT:
+                return this.rand.nextInt(this.maxInt);
+            case DATE:
+                return new Date(this.rand.nextLong());
+            default:
+                throw new AssertionError(this.fieldType);
+        }
+    }
+
+    /**
+     * Generates ranks that make a top-N of size 'keep' insert new elements all
+     * over the kept ones, and fix its biggest element right afterwards. For
+     * LimitSort this means moving the kept elements that lie between the new
+     * ones for only a few new elements each time.
+     * <p>
+     * The ranks are emitted in bands, each one below the previous one. A band
+     * starts with 'keep' new ranks, which replace all kept ones, and continues
+     * with rounds of ranks that land ADVERSARIAL_GAP positions apart, followed by
+     * two ranks equal to the third biggest kept one. The kept ranks are tracked
+     * in a multiset to know the latter.
+     * </p>
+     */
+    static long[] adversarialRanks(int n, long keySpace, int keep) {
+        long[] ranks = new long[n];
+        if (keep <= 0 || keep >= n) {
+            // nothing is ever evicted, so any order is as good as another
+            Arrays.fill(ranks, keySpace - 1);
+            return ranks;
+        }
+        int gap = Math.max(1, Math.min(ADVERSARIAL_GAP, keep / 16));
+        TreeMap<Long, Integer> kept = new TreeMap<>();
+        long base = keySpace;
+        int i = 0;
+        while (i < n && base - keep >= 0) {
+            base -= keep;
+            kept.clear();
+            for (int j = 0; j < keep && i < n; j++) {
+                ranks[i++] = base + j;
+                kept.put(base + j, 1);
+            }
+            int before;
+            do {
+                before = i;
+                long top = kept.lastKey();
+                for (long v = base + gap; v < top - 2 && i < n; v += gap) {
+                    ranks[i++] = v;
+                    replaceBiggest(kept, v);
+                }
+                long[] biggest = new long[3];
+                int found = 0;
+                for (Map.Entry<Long, Integer> e : kept.descendingMap().entrySet()) {
+                    for (int c = 0; c < e.getValue() && found < 3; c++) {
+                        biggest[found++] = e.getKey();
+                    }
+                    if (found == 3) {
+                        break;
+                    }
+                }
+                if (found == 3 && biggest[2] < biggest[1]) {
+                    for (int c = 0; c < 2 && i < n; c++) {
+                        ranks[i++] = biggest[2];
+                        replaceBiggest(kept, biggest[2]);
+                    }
+                }
+            } while (i < n && i > before && kept.lastKey() - base > 2L * gap + 2);
+        }
+        // the key space is used up, the remaining tuples are rejected
+        for (; i < n; i++) {
+            ranks[i] = keySpace - 1;
+        }
+        return ranks;
+    }
+
+    /** Adds a rank to the multiset and removes the biggest one */
+    private static void replaceBiggest(TreeMap<Long, Integer> kept, long rank) {
+        kept.merge(rank, 1, Integer::sum);
+        Map.Entry<Long, Integer> last = kept.lastEntry();
+        if (last.getValue() == 1) {
+            kept.remove(last.getKey());
+        } else {
+            kept.put(last.getKey(), last.getValue() - 1);
+        }
+    }
+}
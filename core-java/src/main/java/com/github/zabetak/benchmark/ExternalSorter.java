@@ -0,0 +1,352 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * External merge sort for inputs that do not fit into memory. The items are
+ * buffered in memory until their serialized size exceeds the memory budget.
+ * Then the buffer is sorted and written as a run to a temporary file. The result
+ * is a k-way merge over all runs, which reads the runs back while iterating.
+ * <p>
+ * At most 'maxFanIn' runs are read at once, each one through its own I/O buffer.
+ * If there are more runs, groups of consecutive runs are merged into longer runs
+ * first, until the remaining runs can be merged in one pass. This bounds the
+ * open files and the memory of the merge, even when a small memory budget
+ * produces thousands of runs.
+ * </p>
+ * <p>
+ * The sort is stable: each run is sorted with a stable sort, and on ties the
+ * merge prefers the run that was written first.
+ * </p>
+ *
+ * @param <E> type of the items
+ */
+public class ExternalSorter<E> implements AutoCloseable {
+    static final int IO_BUFFER_SIZE = 64 * 1024;
+    /** Default number of sources of a merge, 4 MiB of I/O buffers */
+    static final int DEFAULT_MAX_FAN_IN = 64;
+
+    /**
+     * Writes and reads items to and from the runs. An item has to fit into the
+     * I/O buffer of 64 KiB.
+     */
+    public interface Serializer<E> {
+        /** Number of bytes that {@link #write(Object, ByteBuffer)} will write */
+        int size(E e);
+
+        void write(E e, ByteBuffer buf);
+
+        E read(ByteBuffer buf);
+    }
+
+    private final Comparator<? super E> cmp;
+    private final Serializer<E> serializer;
+    private final long memoryBudget;
+    private final int maxFanIn;
+
+    private final List<E> buffer = new ArrayList<>();
+    /** Serialized size of the items in the buffer */
+    private long bufferBytes = 0;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<FileChannel> openChannels = new ArrayList<>();
+    private ByteBuffer writeBuffer;
+
+    public ExternalSorter(Comparator<? super E> comparator, Serializer<E> serializer, long memoryBudget) {
+        this(comparator, serializer, memoryBudget, DEFAULT_MAX_FAN_IN);
+    }
+
+    public ExternalSorter(Comparator<? super E> comparator, Serializer<E> serializer, long memoryBudget,
+            int maxFanIn) {
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("max fan-in (" + maxFanIn + ") must be at least 2");
+        }
+        this.cmp = comparator;
+        this.serializer = serializer;
+        this.memoryBudget = memoryBudget;
+        this.maxFanIn = maxFanIn;
+    }
+
+    /**
+     * Adds an item, which might spill the buffered items to disk.
+     */
+    public void offer(E e) throws IOException {
+        buffer.add(e);
+        bufferBytes += Integer.BYTES + serializer.size(e);
+        if (bufferBytes > memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Returns the sorted items. The items of the last run stay in memory, the
+     * others are read from disk while iterating. The runs are read only once, so
+     * this method can be called only once, and the result can be iterated only
+     * until this sorter is closed.
+     */
+    public Iterator<E> getResult() throws IOException {
+        buffer.sort(cmp);
+        if (runs.isEmpty()) {
+            return buffer.iterator();
+        }
+
+        // the items in memory are one more source of the last merge
+        while (runs.size() > maxFanIn - 1) {
+            mergePass();
+        }
+        List<Iterator<E>> sources = openRuns(runs);
+        sources.add(buffer.iterator());
+        return new MergeIterator(sources);
+    }
+
+    /** Deletes the runs */
+    @Override
+    public void close() throws IOException {
+        for (FileChannel channel : openChannels) {
+            channel.close();
+        }
+        openChannels.clear();
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    private void spill() throws IOException {
+        buffer.sort(cmp);
+        runs.add(writeRun(buffer.iterator()));
+        buffer.clear();
+        bufferBytes = 0;
+    }
+
+    /**
+     * Merges groups of 'maxFanIn' consecutive runs into one run each. A merged
+     * run takes the place of its group, so the merges stay stable.
+     */
+    private void mergePass() throws IOException {
+        for (int i = 0; i < runs.size(); i++) {
+            List<Path> group = runs.subList(i, Math.min(runs.size(), i + maxFanIn));
+            if (group.size() == 1) {
+                break;
+            }
+            int opened = openChannels.size();
+            Path run = writeRun(new MergeIterator(openRuns(group)));
+            List<FileChannel> channels = openChannels.subList(opened, openChannels.size());
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+            channels.clear();
+            for (Path p : group) {
+                Files.delete(p);
+            }
+            group.clear();
+            runs.add(i, run);
+        }
+    }
+
+    private List<Iterator<E>> openRuns(List<Path> paths) throws IOException {
+        List<Iterator<E>> sources = new ArrayList<>(paths.size() + 1);
+        for (Path run : paths) {
+            FileChannel channel = FileChannel.open(run, StandardOpenOption.READ);
+            openChannels.add(channel);
+            sources.add(new RunReader(channel));
+        }
+        return sources;
+    }
+
+    /** Writes the sorted items to a new temporary file */
+    private Path writeRun(Iterator<E> items) throws IOException {
+        if (writeBuffer == null) {
+            writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        }
+
+        Path run = Files.createTempFile("external-sort-run", ".bin");
+        try (FileChannel channel = FileChannel.open(run, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = writeBuffer;
+            buf.clear();
+            while (items.hasNext()) {
+                E e = items.next();
+                int size = serializer.size(e);
+                if (buf.remaining() < Integer.BYTES + size) {
+                    flush(channel, buf);
+                }
+                buf.putInt(size);
+                serializer.write(e, buf);
+            }
+            flush(channel, buf);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(run);
+            throw ex;
+        }
+        return run;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /** Reads the items of a run, each one is prefixed by its size */
+    private class RunReader implements Iterator<E> {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        private boolean eof = false;
+
+        RunReader(FileChannel channel) {
+            this.channel = channel;
+            buf.limit(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ensure(Integer.BYTES);
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int size = buf.getInt();
+            if (!ensure(size)) {
+                throw new IllegalStateException("Truncated run, expected " + size + " bytes");
+            }
+            return serializer.read(buf);
+        }
+
+        /** Makes sure that at least n bytes can be read from the buffer */
+        private boolean ensure(int n) {
+            if (buf.remaining() >= n) {
+                return true;
+            }
+            if (eof) {
+                return false;
+            }
+            try {
+                buf.compact();
+                while (buf.position() < n) {
+                    if (channel.read(buf) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buf.flip();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return buf.remaining() >= n;
+        }
+    }
+
+    /**
+     * Merges the sorted sources. The sources that still have items are kept in a
+     * binary min-heap, ordered by their next item and then by their index.
+     */
+    private class MergeIterator implements Iterator<E> {
+        private final List<Iterator<E>> sources;
+        private final Object[] heads;
+        private final int[] heap;
+        private int heapSize = 0;
+
+        MergeIterator(List<Iterator<E>> sources) {
+            this.sources = sources;
+            this.heads = new Object[sources.size()];
+            this.heap = new int[sources.size()];
+            for (int s = 0; s < sources.size(); s++) {
+                if (sources.get(s).hasNext()) {
+                    heads[s] = sources.get(s).next();
+                    heap[heapSize++] = s;
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return heapSize > 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (heapSize == 0) {
+                throw new NoSuchElementException();
+            }
+            int s = heap[0];
+            E result = (E) heads[s];
+            if (sources.get(s).hasNext()) {
+                heads[s] = sources.get(s).next();
+            } else {
+                heads[s] = null;
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean lessThan(int a, int b) {
+            int c = cmp.compare((E) heads[a], (E) heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        private void siftDown(int i) {
+            int toMove = heap[i];
+            int j = i;
+            do {
+                int l = 2 * j + 1;
+                if (l >= heapSize) {
+                    break;
+                }
+
+                int r = l + 1;
+                int smaller = l;
+                if (r < heapSize && lessThan(heap[r], heap[l])) {
+                    smaller = r;
+                }
+                if (!lessThan(heap[smaller], toMove)) {
+                    break;
+                }
+
+                heap[j] = heap[smaller];
+                j = smaller;
+            } while (true);
+            heap[j] = toMove;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Variant of {@link TopNHeap} for elements that are sorted by a primitive int
+ * key in ascending order. The key of each element is extracted once when it is
+ * offered and stored in a parallel array, so all comparisons within the heap
+ * are primitive comparisons.
+ *
+ * @param <TSource> type of the element that will be added to the heap
+ */
+public class IntTopNHeap<TSource> {
+    static final int MAX_INIT_ARRAY_SIZE = 1024;
+    static final int ROOT = 1;
+
+    private final ToIntFunction<TSource> keyFn;
+    private final int fetch;
+    private final int offset;
+    private final int maxSize;
+
+    int size = 0;
+    int time = Integer.MIN_VALUE;
+
+    /** Heap with 1-based index, heap[0] is not used */
+    TSource[] heap;
+    /** Stores the key of the elements in the heap */
+    int[] keys;
+    /** Stores the order of arrival of the elements in the heap */
+    int[] order;
+
+    public IntTopNHeap(ToIntFunction<TSource> keySelector, int fetch, int offset) {
+        this.keyFn = keySelector;
+        long tmp = (long) fetch + offset;
+        this.maxSize = tmp > Integer.MAX_VALUE - ROOT ? Integer.MAX_VALUE - ROOT : (int) tmp;
+
+        int arrayLen = this.maxSize + ROOT;
+        if (arrayLen > 2 * MAX_INIT_ARRAY_SIZE) {
+            arrayLen = MAX_INIT_ARRAY_SIZE;
+        }
+
+        @SuppressWarnings("unchecked")
+        TSource[] t = (TSource[]) new Object[arrayLen];
+        this.heap = t;
+        this.keys = new int[arrayLen];
+        this.order = new int[arrayLen];
+        this.fetch = fetch;
+        this.offset = offset;
+    }
+
+    /**
+     * Offers a new item to the heap.
+     */
+    public void offer(TSource o) {
+        int key = this.keyFn.applyAsInt(o);
+        if (this.size < this.maxSize) {
+            this.size++;
+            if (this.size >= this.heap.length) {
+                this.growSize();
+            }
+
+            this.shiftUp(this.size, o, key, this.time++);
+            return;
+        }
+
+        // check head
+        if (key >= this.keys[ROOT]) {
+            return;
+        }
+
+        this.shiftDown(ROOT, o, key, this.time++);
+    }
+
+    /**
+     * Returns an array with at most 'fetch' entries, that contains the sorted
+     * entries of the items added to the heap, while skipping the first 'offset'
+     * elements.
+     */
+    public Object[] getResult() {
+        int len = Math.min(this.size - this.offset, this.fetch);
+        len = Math.max(0, len);
+        @SuppressWarnings("unchecked")
+        TSource[] result = (TSource[]) new Object[len];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = this.poll();
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    private void growSize() {
+        int newLen = (int) Math.min(this.maxSize, this.heap.length * 2L) + ROOT;
+        if (newLen * 2 > this.maxSize) {
+            newLen = this.maxSize + ROOT;
+        }
+
+        this.heap = Arrays.copyOf(this.heap, newLen);
+        this.keys = Arrays.copyOf(this.keys, newLen);
+        this.order = Arrays.copyOf(this.order, newLen);
+    }
+
+    private TSource poll() {
+        if (this.size <= 0) {
+            return null;
+        }
+
+        TSource result = this.heap[ROOT];
+        int last = this.size--;
+        if (this.size > 0) {
+            this.shiftDown(ROOT, this.heap[last], this.keys[last], this.order[last]);
+        }
+        this.heap[last] = null;
+        return result;
+    }
+
+    private boolean lessThan(int a, int b) {
+        int c = Integer.compare(this.keys[a], this.keys[b]);
+        return c > 0 || (c == 0 && this.order[a] > this.order[b]);
+    }
+
+    private void assign(int dst, int src) {
+        this.assign(dst, this.heap[src], this.keys[src], this.order[src]);
+    }
+
+    private void assign(int dst, TSource o, int key, int time) {
+        this.heap[dst] = o;
+        this.keys[dst] = key;
+        this.order[dst] = time;
+    }
+
+    private void shiftUp(int i, TSource toMove, int key, int time) {
+        int j = i;
+        while (j > ROOT) {
+            int p = j >>> 1;
+
+            int c = Integer.compare(key, this.keys[p]);
+            if (c < 0 || (c == 0 && time < this.order[p])) {
+                break;
+            }
+
+            this.assign(j, p);
+            j = p;
+        }
+        this.assign(j, toMove, key, time);
+    }
+
+    private void shiftDown(int i, TSource toMove, int key, int time) {
+        int j = i;
+        do {
+            int l = j << 1;
+            if (l > this.size) {
+                break;
+            }
+
+            int r = l + 1;
+            int smaller = l;
+            if (r <= this.size && this.lessThan(r, l)) {
+                smaller = r;
+            }
+
+            int c = Integer.compare(key, this.keys[smaller]);
+            if (c > 0 || (c == 0 && time > this.order[smaller])) {
+                break;
+            }
+
+            this.assign(j, smaller);
+            j = smaller;
+        } while (true);
+        this.assign(j, toMove, key, time);
+    }
+
+}
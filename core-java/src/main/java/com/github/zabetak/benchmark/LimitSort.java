@@ -1,28 +1,23 @@
 package com.github.zabetak.benchmark;
 
-import java.lang.reflect.Array;
 import java.util.*;
 
-import com.github.zabetak.benchmark.PartialSortBenchmark.Record;
-
 public class LimitSort<E> {
 
     private static int INIT_ARRAY = 512 / 2;
     private static int MAX_MOVE_FOR_PARTIAL_INSERT = 1024; // 24;
-
-    static class Etmp {
-        Object o;
-        int idx;
-
-        @Override
-        public String toString() {
-            return idx + ":" + o;
-        }
-    }
+    /** Average number of elements that may be moved to insert one pending element */
+    private static int MAX_MOVES_PER_INSERT = 32;
+    private static int INIT_PENDING = 64;
+    /** Shorter runs of pending elements are extended to this size by insertion */
+    private static int MIN_RUN = 16;
 
     private Object[] content;
     private Comparator<? super Object> cmp;
+    /** Number of elements that need to be kept, i.e. limit + offset */
     private int limit;
+    /** Number of elements that are skipped at the beginning of the result */
+    private int offset;
     private int size = 0;
 
     /**
@@ -35,15 +30,34 @@ public class LimitSort<E> {
     /** Marks the currently biggest element */
     private int tail;
 
-    private List<Etmp> toInsert = new ArrayList<>();
+    /**
+     * The elements that need to be inserted, and the index in content before
+     * which they belong. Only the first toInsertSize entries are used.
+     */
+    private Object[] toInsert = new Object[INIT_PENDING];
+    private int[] toInsertIdx = new int[INIT_PENDING];
+    private int toInsertSize = 0;
+
+    /** Scratch space for sorting toInsert, see sortToInsert */
+    private Object[] sortBuffer = new Object[0];
+    private int[] sortIdxBuffer = new int[0];
+    private int[] runEnds = new int[0];
+
+    /** Buffer for the indices of the items of a batch that beat the tail */
+    private int[] survivorIdx = new int[0];
 
-    @SuppressWarnings("unchecked")
     LimitSort(Comparator<E> comparator, int limit) {
+        this(comparator, limit, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    LimitSort(Comparator<E> comparator, int limit, int offset) {
         this.cmp = (Comparator<? super Object>) comparator;
-        this.limit = limit < 0 ? Integer.MAX_VALUE : limit;
+        this.limit = limit < 0 ? Integer.MAX_VALUE : (int) Math.min((long) limit + offset, Integer.MAX_VALUE);
+        this.offset = offset;
         completeFrom = this.limit;
         tail = -1;
-        content = (E[]) Array.newInstance(Record.class, getNewSize(INIT_ARRAY));
+        content = new Object[getNewSize(INIT_ARRAY)];
     }
 
     private void ensureCapacity(int i) {
@@ -76,64 +90,102 @@ public class LimitSort<E> {
         return left;
     }
 
-    public void offer(E e) {
+    /** Returns true once limit + offset elements were offered, and later ones may be rejected */
+    public boolean isFull() {
+        return size >= limit;
+    }
+
+    /**
+     * Offers a new element. Returns false if it was rejected, because it is not
+     * smaller than the biggest element kept so far.
+     */
+    public boolean offer(E e) {
         if (size < limit) {
             ensureCapacity(size + 1);
             content[size++] = e;
             tail++;
-            return;
+            return true;
         }
 
-        boolean manyToInsert = size > MAX_MOVE_FOR_PARTIAL_INSERT && toInsert.size() > size / 8;
-        if (tail < completeFrom || manyToInsert)
-            sort(manyToInsert);
+        prepareTail();
 
         if (cmp.compare(content[tail], e) <= 0)
-            return;
+            return false;
 
         int idx = binarySearch(e);
         // we can just replace the tail
         if (idx == tail && idx > completeFrom) {
             content[tail] = e;
-            return;
+            return true;
         }
 
         // we need to make space
         completeFrom = Math.max(completeFrom, idx);
         content[tail--] = null;
-        Etmp n = new Etmp();
-        n.idx = idx;
-        n.o = e;
-        toInsert.add(n);
+        if (toInsertSize == toInsert.length) {
+            toInsert = Arrays.copyOf(toInsert, toInsertSize * 2);
+            toInsertIdx = Arrays.copyOf(toInsertIdx, toInsertSize * 2);
+        }
+        toInsert[toInsertSize] = e;
+        toInsertIdx[toInsertSize++] = idx;
+        return true;
+    }
+
+    /**
+     * Offers the items batch[from] to batch[to - 1]. Once the limit is reached,
+     * all remaining items of the batch are compared against the current tail
+     * first, and only the items that beat it are inserted afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    public void offerAll(Object[] batch, int from, int to) {
+        int i = from;
+        while (i < to && size < limit)
+            offer((E) batch[i++]);
+        if (i >= to)
+            return;
+
+        if (survivorIdx.length < to - i)
+            survivorIdx = new int[to - i];
+
+        // the tail can only get smaller while inserting, so everything that is
+        // not smaller than the current tail can be rejected right away
+        prepareTail();
+        Object threshold = content[tail];
+        int n = 0;
+        for (; i < to; i++) {
+            survivorIdx[n] = i;
+            n += cmp.compare(threshold, batch[i]) > 0 ? 1 : 0;
+        }
+
+        for (int s = 0; s < n; s++)
+            offer((E) batch[survivorIdx[s]]);
+    }
+
+    /** Makes sure that content[tail] is the biggest element that is kept */
+    private void prepareTail() {
+        boolean manyToInsert = size > MAX_MOVE_FOR_PARTIAL_INSERT && toInsertSize > size / 8;
+        if (tail < completeFrom || manyToInsert)
+            sort(manyToInsert);
     }
 
     private void sort(boolean complete) {
-        if (this.toInsert.isEmpty()) {
+        if (toInsertSize == 0) {
             Arrays.sort(content, 0, size, cmp);
             tail = size - 1;
             completeFrom = 0;
             return;
         }
 
-        if (toInsert.isEmpty())
-            return;
-
-        toInsert.sort((a, b) -> {
-            int c = Integer.compare(a.idx, b.idx);
-            if (c != 0)
-                return c;
-            return cmp.compare(a.o, b.o);
-        });
+        sortToInsert();
 
         int keep = complete ? 0 : getToInsertKeep();
         assert keep >= 0;
-        assert keep < toInsert.size();
+        assert keep < toInsertSize;
 
         int contentOutIdx = size - keep;
         int contentInIdx = tail + 1;
-        for (int i = toInsert.size(); i-- > keep;) {
-            Etmp tmp = toInsert.get(i);
-            int dst = tmp.idx;
+        for (int i = toInsertSize; i-- > keep;) {
+            int dst = toInsertIdx[i];
             int len = contentInIdx - dst;
 
             // a for small slices, a loop is quicker
@@ -147,40 +199,194 @@ public class LimitSort<E> {
                 System.arraycopy(content, contentInIdx, content, contentOutIdx, len);
             }
 
-            content[--contentOutIdx] = tmp.o;
+            content[--contentOutIdx] = toInsert[i];
         }
-        toInsert.subList(keep, toInsert.size()).clear();
+        Arrays.fill(toInsert, keep, toInsertSize, null);
+        toInsertSize = keep;
         tail = size - keep - 1;
-        completeFrom = keep == 0 ? 0 : toInsert.get(keep - 1).idx;
+        completeFrom = keep == 0 ? 0 : toInsertIdx[keep - 1];
     }
 
-    // TODO tre possible attack: force copying of a big slice after every other new
-    // element. Avoid by analyzing toInsert and process a part.
+    /**
+     * Sorts the entries of toInsert by their index and then by the element. The
+     * sort is stable, so equal elements stay in the order they were offered.
+     * Like TimSort, it merges the ascending and reversed descending runs of the
+     * entries, which are common since the kept entries are already sorted, but
+     * it reuses its buffers, thus it does not allocate once they are big enough.
+     */
+    private void sortToInsert() {
+        int n = toInsertSize;
+        if (sortBuffer.length < n) {
+            sortBuffer = new Object[toInsert.length];
+            sortIdxBuffer = new int[toInsert.length];
+            runEnds = new int[toInsert.length / MIN_RUN + 1];
+        }
+
+        int runs = 0;
+        for (int from = 0; from < n;) {
+            int to = findRun(from, n);
+            if (to - from < MIN_RUN) {
+                int forced = Math.min(n, from + MIN_RUN);
+                insertionSort(from, to, forced);
+                to = forced;
+            }
+            runEnds[runs++] = to;
+            from = to;
+        }
+
+        while (runs > 1) {
+            int merged = 0;
+            int from = 0;
+            for (int r = 0; r < runs; r += 2) {
+                if (r + 1 < runs)
+                    merge(from, runEnds[r], runEnds[r + 1]);
+                from = runEnds[Math.min(r + 1, runs - 1)];
+                runEnds[merged++] = from;
+            }
+            runs = merged;
+        }
+    }
+
+    /**
+     * Returns the end of the run that starts at 'from'. A strictly descending run
+     * is reversed, so the run is ascending afterwards.
+     */
+    private int findRun(int from, int n) {
+        int to = from + 1;
+        if (to == n)
+            return to;
+        if (compareToInsert(from, to) > 0) {
+            while (++to < n && compareToInsert(to - 1, to) > 0)
+                ;
+            for (int lo = from, hi = to - 1; lo < hi; lo++, hi--) {
+                Object o = toInsert[lo];
+                toInsert[lo] = toInsert[hi];
+                toInsert[hi] = o;
+                int idx = toInsertIdx[lo];
+                toInsertIdx[lo] = toInsertIdx[hi];
+                toInsertIdx[hi] = idx;
+            }
+        } else {
+            while (++to < n && compareToInsert(to - 1, to) <= 0)
+                ;
+        }
+        return to;
+    }
+
+    /** Inserts the entries sorted to to - 1 into the sorted entries from to sorted - 1 */
+    private void insertionSort(int from, int sorted, int to) {
+        for (int i = sorted; i < to; i++) {
+            Object o = toInsert[i];
+            int idx = toInsertIdx[i];
+            int pos = upperBound(from, i, i);
+            System.arraycopy(toInsert, pos, toInsert, pos + 1, i - pos);
+            System.arraycopy(toInsertIdx, pos, toInsertIdx, pos + 1, i - pos);
+            toInsert[pos] = o;
+            toInsertIdx[pos] = idx;
+        }
+    }
+
+    /** Merges the sorted entries from to middle - 1 with those from middle to to - 1 */
+    private void merge(int from, int middle, int to) {
+        if (compareToInsert(middle - 1, middle) <= 0)
+            return;
+        // the first entries of the left run and the last ones of the right run
+        // are already at the right place
+        from = upperBound(from, middle, middle);
+        to = lowerBound(middle, to, middle - 1);
+
+        int len = middle - from;
+        System.arraycopy(toInsert, from, sortBuffer, 0, len);
+        System.arraycopy(toInsertIdx, from, sortIdxBuffer, 0, len);
+        int left = 0;
+        int right = middle;
+        int out = from;
+        while (left < len && right < to) {
+            int c = Integer.compare(sortIdxBuffer[left], toInsertIdx[right]);
+            if (c == 0)
+                c = cmp.compare(sortBuffer[left], toInsert[right]);
+            if (c <= 0) {
+                toInsert[out] = sortBuffer[left];
+                toInsertIdx[out++] = sortIdxBuffer[left++];
+            } else {
+                toInsert[out] = toInsert[right];
+                toInsertIdx[out++] = toInsertIdx[right++];
+            }
+        }
+        System.arraycopy(sortBuffer, left, toInsert, out, len - left);
+        System.arraycopy(sortIdxBuffer, left, toInsertIdx, out, len - left);
+        Arrays.fill(sortBuffer, 0, len, null);
+    }
+
+    /** Returns the first of the sorted entries from to to - 1 that is bigger than the given one */
+    private int upperBound(int from, int to, int entry) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (compareToInsert(middle, entry) <= 0)
+                from = middle + 1;
+            else
+                to = middle;
+        }
+        return from;
+    }
+
+    /** Returns the first of the sorted entries from to to - 1 that is not smaller than the given one */
+    private int lowerBound(int from, int to, int entry) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (compareToInsert(middle, entry) < 0)
+                from = middle + 1;
+            else
+                to = middle;
+        }
+        return from;
+    }
+
+    private int compareToInsert(int a, int b) {
+        int c = Integer.compare(toInsertIdx[a], toInsertIdx[b]);
+        return c != 0 ? c : cmp.compare(toInsert[a], toInsert[b]);
+    }
+
+    /**
+     * Returns how many of the (sorted) entries of toInsert stay pending. Small
+     * arrays are merged completely. Otherwise the longest suffix is inserted for
+     * which the elements that have to be moved do not exceed MAX_MOVES_PER_INSERT
+     * per inserted entry, but at least the last entry. The other entries wait
+     * for a complete merge, see prepareTail, which moves every element at most
+     * once. Thus the insertion order cannot force a big copy for a few new
+     * elements.
+     */
     private int getToInsertKeep() {
         if (size < MAX_MOVE_FOR_PARTIAL_INSERT)
             return 0;
 
-        int last = tail;
-        int i = toInsert.size() - 1;
-        while (i-- > 0) {
-            Etmp tmp = toInsert.get(i);
-            if (last - tmp.idx > MAX_MOVE_FOR_PARTIAL_INSERT)
-                return i + 1;
-            last = tmp.idx;
+        int n = toInsertSize;
+        long maxMoves = (long) MAX_MOVES_PER_INSERT * n;
+        int keep = n - 1;
+        for (int i = n - 1; i-- > 0;) {
+            long moves = tail + 1L - toInsertIdx[i];
+            if (moves > maxMoves)
+                break;
+            if (moves <= (long) MAX_MOVES_PER_INSERT * (n - i))
+                keep = i;
         }
-
-        return 0;
+        return keep;
     }
 
+    /**
+     * Returns the sorted elements, without the first 'offset' ones. The result is
+     * a view on the internal array.
+     */
     @SuppressWarnings("unchecked")
-    public Iterable<E> getResult() {
+    public List<E> getResult() {
         sort(true);
         Object[] result = content;
         content = null;
-        if (this.size == result.length) {
-            return (Iterable<E>) Arrays.asList(result);
+        int from = Math.min(offset, size);
+        if (from == 0 && this.size == result.length) {
+            return (List<E>) Arrays.asList(result);
         } else {
-            return (Iterable<E>) Arrays.asList(result).subList(0, size);
+            return (List<E>) Arrays.asList(result).subList(from, size);
         }
     }
 
@@ -202,8 +408,8 @@ public class LimitSort<E> {
         }
 
         System.out.print("   toInsert ");
-        for (Etmp e : toInsert) {
-            System.out.print(e + ", ");
+        for (int i = 0; i < toInsertSize; i++) {
+            System.out.print(toInsertIdx[i] + ":" + toInsert[i] + ", ");
         }
 
         System.out.println("");
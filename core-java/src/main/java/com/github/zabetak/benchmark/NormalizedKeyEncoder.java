@@ -0,0 +1,100 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encodes a list of fields into a normalized key, i.e. a sequence of bytes that
+ * can be compared byte by byte (unsigned) and gives the same result as
+ * comparing the fields one after the other. Each value is written big-endian
+ * with its sign bit flipped: an {@link Integer} takes 4 bytes, a {@link Long}
+ * or a {@link Date} 8 bytes.
+ * <p>
+ * Only the first 8 bytes of the normalized key are kept, as a long prefix. If
+ * two prefixes differ, they decide the order of the fields. If they are equal,
+ * the fields need to be compared, unless the normalized key fits completely into
+ * the prefix (see {@link #isComplete(List)}).
+ * </p>
+ */
+public final class NormalizedKeyEncoder {
+    static final int PREFIX_SIZE = Long.BYTES;
+
+    private NormalizedKeyEncoder() {
+    }
+
+    /**
+     * Returns the first 8 bytes of the normalized key of the fields. The sign bit
+     * of the result is flipped again, so that prefixes can be compared with
+     * {@link Long#compare(long, long)}.
+     */
+    public static long prefix(List<? extends Comparable> fields) {
+        long prefix = 0;
+        int free = PREFIX_SIZE;
+        for (Object f : fields) {
+            if (free == 0) {
+                break;
+            }
+
+            int width = width(f);
+            long bits;
+            if (f instanceof Integer) {
+                bits = ((Integer) f ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+            } else if (f instanceof Long) {
+                bits = (Long) f ^ Long.MIN_VALUE;
+            } else {
+                bits = ((Date) f).getTime() ^ Long.MIN_VALUE;
+            }
+
+            if (width <= free) {
+                // a shift by 64 bits is a no-op, but then prefix is still 0
+                prefix = (prefix << (width * 8)) | bits;
+                free -= width;
+            } else {
+                prefix = (prefix << (free * 8)) | (bits >>> ((width - free) * 8));
+                free = 0;
+            }
+        }
+        if (free > 0 && free < PREFIX_SIZE) {
+            prefix <<= free * 8;
+        }
+        return prefix ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Whether the normalized key of the fields fits into the prefix, so that equal
+     * prefixes mean equal fields.
+     */
+    public static boolean isComplete(List<? extends Comparable> fields) {
+        int len = 0;
+        for (Object f : fields) {
+            len += width(f);
+        }
+        return len <= PREFIX_SIZE;
+    }
+
+    private static int width(Object value) {
+        if (value instanceof Integer) {
+            return Integer.BYTES;
+        } else if (value instanceof Long || value instanceof Date) {
+            return Long.BYTES;
+        }
+        throw new IllegalArgumentException("Unsupported type for a normalized key: " + value.getClass());
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Variant of {@link TopNHeap} that keeps the heap outside of the Java heap. Each
+ * entry of the heap is a fixed-width binary record, that consists of an 8 byte
+ * key prefix and a 4 byte row id, stored in a direct {@link ByteBuffer}. The
+ * items themselves are only looked up by their row id in
+ * {@link #getResult(IntFunction)}.
+ * <p>
+ * The key is stored big-endian with the sign bit flipped, so that comparing
+ * two keys byte by byte gives the same result as comparing the original longs.
+ * The heap compares 8 bytes at once, as an unsigned long. The row id is used to
+ * break ties, so the heap is stable if the row ids follow the order of arrival.
+ * </p>
+ *
+ * @param <TSource> type of the element that will be added to the heap
+ */
+public class OffHeapTopNHeap<TSource> {
+    static final int KEY_SIZE = Long.BYTES;
+    static final int ENTRY_SIZE = KEY_SIZE + Integer.BYTES;
+    static final int MAX_INIT_ARRAY_SIZE = 1024;
+    static final int MAX_ENTRIES = Integer.MAX_VALUE / ENTRY_SIZE;
+    static final int ROOT = 1;
+
+    private final ToLongFunction<TSource> keyFn;
+    private final int fetch;
+    private final int offset;
+    private final int maxSize;
+
+    int size = 0;
+
+    /** Heap with 1-based index, the entry at index 0 is not used */
+    ByteBuffer heap;
+
+    public OffHeapTopNHeap(ToLongFunction<TSource> keySelector, int fetch, int offset) {
+        this.keyFn = keySelector;
+        long tmp = (long) fetch + offset;
+        this.maxSize = tmp > MAX_ENTRIES - ROOT ? MAX_ENTRIES - ROOT : (int) tmp;
+
+        int arrayLen = this.maxSize + ROOT;
+        if (arrayLen > 2 * MAX_INIT_ARRAY_SIZE) {
+            arrayLen = MAX_INIT_ARRAY_SIZE;
+        }
+
+        this.heap = ByteBuffer.allocateDirect(arrayLen * ENTRY_SIZE);
+        this.fetch = fetch;
+        this.offset = offset;
+    }
+
+    /**
+     * Offers a new item to the heap. Only its key and the row id are stored.
+     */
+    public void offer(TSource o, int rowId) {
+        long key = this.keyFn.applyAsLong(o) ^ Long.MIN_VALUE;
+        if (this.size < this.maxSize) {
+            this.size++;
+            if (this.size >= this.capacity()) {
+                this.growSize();
+            }
+
+            this.shiftUp(this.size, key, rowId);
+            return;
+        }
+
+        // check head
+        if (this.compare(key, rowId, ROOT) >= 0) {
+            return;
+        }
+
+        this.shiftDown(ROOT, key, rowId);
+    }
+
+    /**
+     * Returns an array with at most 'fetch' entries, that contains the sorted
+     * entries of the items added to the heap, while skipping the first 'offset'
+     * elements. The items are looked up by their row id.
+     */
+    public Object[] getResult(IntFunction<TSource> rows) {
+        int len = Math.min(this.size - this.offset, this.fetch);
+        len = Math.max(0, len);
+        Object[] result = new Object[len];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = rows.apply(this.poll());
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    private int capacity() {
+        return this.heap.capacity() / ENTRY_SIZE;
+    }
+
+    private void growSize() {
+        int newLen = (int) Math.min(this.maxSize, this.capacity() * 2L) + ROOT;
+        if (newLen * 2L > this.maxSize) {
+            newLen = this.maxSize + ROOT;
+        }
+
+        ByteBuffer newHeap = ByteBuffer.allocateDirect(newLen * ENTRY_SIZE);
+        ByteBuffer old = this.heap.duplicate();
+        old.clear();
+        newHeap.put(old);
+        newHeap.clear();
+        this.heap = newHeap;
+    }
+
+    private long key(int i) {
+        return this.heap.getLong(i * ENTRY_SIZE);
+    }
+
+    private int rowId(int i) {
+        return this.heap.getInt(i * ENTRY_SIZE + KEY_SIZE);
+    }
+
+    private int poll() {
+        int result = this.rowId(ROOT);
+        int last = this.size--;
+        if (this.size > 0) {
+            this.shiftDown(ROOT, this.key(last), this.rowId(last));
+        }
+        return result;
+    }
+
+    private int compare(long key, int rowId, int i) {
+        int c = Long.compareUnsigned(key, this.key(i));
+        if (c == 0) {
+            return Integer.compare(rowId, this.rowId(i));
+        }
+        return c;
+    }
+
+    private void assign(int dst, int src) {
+        this.assign(dst, this.key(src), this.rowId(src));
+    }
+
+    private void assign(int dst, long key, int rowId) {
+        this.heap.putLong(dst * ENTRY_SIZE, key);
+        this.heap.putInt(dst * ENTRY_SIZE + KEY_SIZE, rowId);
+    }
+
+    private void shiftUp(int i, long key, int rowId) {
+        int j = i;
+        while (j > ROOT) {
+            int p = j >>> 1;
+            if (this.compare(key, rowId, p) < 0) {
+                break;
+            }
+
+            this.assign(j, p);
+            j = p;
+        }
+        this.assign(j, key, rowId);
+    }
+
+    private void shiftDown(int i, long key, int rowId) {
+        int j = i;
+        do {
+            int l = j << 1;
+            if (l > this.size) {
+                break;
+            }
+
+            int r = l + 1;
+            int smaller = l;
+            if (r <= this.size && this.compare(this.key(r), this.rowId(r), l) > 0) {
+                smaller = r;
+            }
+
+            if (this.compare(key, rowId, smaller) > 0) {
+                break;
+            }
+
+            this.assign(j, smaller);
+            j = smaller;
+        } while (true);
+        this.assign(j, key, rowId);
+    }
+
+}
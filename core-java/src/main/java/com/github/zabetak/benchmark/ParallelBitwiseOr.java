@@ -0,0 +1,93 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the union of many bitsets, stored as long words, in parallel. The
+ * range of words is split in halves recursively, until a range has at most
+ * 'leafWords' words, and every leaf ORs all bitsets over its range, in tiles
+ * that fit into the L1 cache, see {@link TiledBitwiseOr}.
+ * <p>
+ * The pool is passed in and is meant to live as long as the service that uses
+ * it, so a union does not pay for starting and stopping threads.
+ * </p>
+ */
+public class ParallelBitwiseOr {
+    /** Default number of words of a leaf, 128KB of the result */
+    static final int DEFAULT_LEAF_WORDS = 1 << 14;
+
+    private final ForkJoinPool pool;
+    private final int leafWords;
+    private final TiledBitwiseOr kernel = TiledBitwiseOr.forCacheLevel(1);
+
+    public ParallelBitwiseOr(ForkJoinPool pool) {
+        this(pool, DEFAULT_LEAF_WORDS);
+    }
+
+    public ParallelBitwiseOr(ForkJoinPool pool, int leafWords) {
+        if (leafWords <= 0) {
+            throw new IllegalArgumentException("leaf words (" + leafWords + ") must be positive");
+        }
+        this.pool = pool;
+        this.leafWords = leafWords;
+    }
+
+    /** Returns the union of the bitsets, which have at least 'words' words each */
+    public long[] or(long[][] bitsets, int words) {
+        long[] result = new long[words];
+        this.orInto(result, bitsets);
+        return result;
+    }
+
+    /** ORs the bitsets into the result, over the words of the result */
+    public void orInto(long[] result, long[][] bitsets) {
+        this.pool.invoke(new OrTask(result, bitsets, 0, result.length));
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    @SuppressWarnings("serial")
+    private final class OrTask extends RecursiveAction {
+        private final long[] result;
+        private final long[][] bitsets;
+        private final int from;
+        private final int to;
+
+        OrTask(long[] result, long[][] bitsets, int from, int to) {
+            this.result = result;
+            this.bitsets = bitsets;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= leafWords) {
+                kernel.orInto(this.result, this.bitsets, this.from, this.to);
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new OrTask(this.result, this.bitsets, this.from, middle),
+                    new OrTask(this.result, this.bitsets, middle, this.to));
+        }
+    }
+}
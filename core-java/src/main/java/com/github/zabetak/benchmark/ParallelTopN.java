@@ -0,0 +1,192 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Computes the top-N of a list in parallel. The list is split into contiguous
+ * chunks, each chunk is processed by a {@link TopNHeap} in its own fork-join
+ * task, and the sorted results of the chunks are combined with a k-way merge.
+ * <p>
+ * The result is stable: on ties the merge prefers the chunk that comes first in
+ * the list, and each chunk is already stable, so equal items keep the order in
+ * which they appear in the input.
+ * </p>
+ *
+ * @param <TSource> type of the elements
+ * @param <TKey> type of the key, which the comparator will use for comparisons
+ */
+public class ParallelTopN<TSource, TKey> {
+
+    private final Function<TSource, TKey> keyFn;
+    private final Comparator<TKey> cmp;
+    private final int fetch;
+    private final int offset;
+    private final ForkJoinPool pool;
+    private final int chunks;
+
+    public ParallelTopN(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int fetch, int offset,
+            ForkJoinPool pool, int chunks) {
+        this.keyFn = keySelector;
+        this.cmp = comparator;
+        this.fetch = fetch;
+        this.offset = offset;
+        this.pool = pool;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns an array with at most 'fetch' entries, that contains the sorted
+     * entries of the data, while skipping the first 'offset' elements.
+     */
+    public Object[] getResult(List<TSource> data) {
+        int n = data.size();
+        int chunkCount = Math.max(1, Math.min(this.chunks, n));
+        long tmp = (long) this.fetch + this.offset;
+        int chunkFetch = tmp > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) tmp;
+
+        List<ChunkTask> tasks = new ArrayList<>(chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            int from = (int) ((long) n * c / chunkCount);
+            int to = (int) ((long) n * (c + 1) / chunkCount);
+            ChunkTask task = new ChunkTask(data, from, to, chunkFetch);
+            tasks.add(task);
+            this.pool.execute(task);
+        }
+
+        Object[][] partial = new Object[chunkCount][];
+        for (int c = 0; c < chunkCount; c++) {
+            partial[c] = tasks.get(c).join();
+        }
+        return this.merge(partial);
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    @SuppressWarnings("serial")
+    private class ChunkTask extends RecursiveTask<Object[]> {
+        private final List<TSource> data;
+        private final int from;
+        private final int to;
+        private final int chunkFetch;
+
+        ChunkTask(List<TSource> data, int from, int to, int chunkFetch) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.chunkFetch = chunkFetch;
+        }
+
+        @Override
+        protected Object[] compute() {
+            TopNHeap<TSource, TKey> heap = new TopNHeap<>(keyFn, cmp, this.chunkFetch, 0);
+            for (int i = this.from; i < this.to; i++) {
+                heap.offer(this.data.get(i));
+            }
+            return heap.getResult();
+        }
+    }
+
+    /**
+     * Merges the sorted chunk results. The chunks that still have items are kept
+     * in a binary min-heap, ordered by the key of their next item and then by
+     * the chunk index.
+     */
+    private Object[] merge(Object[][] partial) {
+        long total = 0;
+        for (Object[] p : partial) {
+            total += p.length;
+        }
+        int len = (int) Math.max(0, Math.min(total - this.offset, this.fetch));
+        Object[] result = new Object[len];
+
+        int k = partial.length;
+        int[] pos = new int[k];
+        @SuppressWarnings("unchecked")
+        TKey[] heads = (TKey[]) new Object[k];
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for (int c = 0; c < k; c++) {
+            if (partial[c].length > 0) {
+                heads[c] = this.key(partial[c][0]);
+                heap[heapSize++] = c;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            this.siftDown(heap, heapSize, i, heads);
+        }
+
+        // there may be fewer items than the offset
+        int skip = (int) Math.min(this.offset, total);
+        for (int i = -skip; i < len && heapSize > 0; i++) {
+            int c = heap[0];
+            if (i >= 0) {
+                result[i] = partial[c][pos[c]];
+            }
+            pos[c]++;
+            if (pos[c] < partial[c].length) {
+                heads[c] = this.key(partial[c][pos[c]]);
+            } else {
+                heap[0] = heap[--heapSize];
+            }
+            this.siftDown(heap, heapSize, 0, heads);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TKey key(Object o) {
+        return this.keyFn.apply((TSource) o);
+    }
+
+    private boolean lessThan(int a, int b, TKey[] heads) {
+        int c = this.cmp.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    private void siftDown(int[] heap, int heapSize, int i, TKey[] heads) {
+        int toMove = heap[i];
+        int j = i;
+        do {
+            int l = 2 * j + 1;
+            if (l >= heapSize) {
+                break;
+            }
+
+            int r = l + 1;
+            int smaller = l;
+            if (r < heapSize && this.lessThan(heap[r], heap[l], heads)) {
+                smaller = r;
+            }
+            if (!this.lessThan(heap[smaller], toMove, heads)) {
+                break;
+            }
+
+            heap[j] = heap[smaller];
+            j = smaller;
+        } while (true);
+        heap[j] = toMove;
+    }
+}
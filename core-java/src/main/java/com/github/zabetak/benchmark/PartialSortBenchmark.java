@@ -20,11 +20,19 @@ import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.annotations.AuxCounters.Type;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * TODO: WIP
@@ -48,6 +56,12 @@ public class PartialSortBenchmark {
             recordIndex = recordCounter++;
         }
 
+        /** Recreates a record, e.g. after it was deserialized */
+        Record(List<Comparable> fields, int recordIndex) {
+            this.fields = Collections.unmodifiableList(fields);
+            this.recordIndex = recordIndex;
+        }
+
         @Override
         public String toString() {
             return fields.toString() + "@" + recordIndex;
@@ -59,10 +73,73 @@ public class PartialSortBenchmark {
         }
     }
 
+    /** A record together with the prefix of its normalized key */
+    static final class PrefixedRecord {
+        final long prefix;
+        final Record record;
+
+        PrefixedRecord(long prefix, Record record) {
+            this.prefix = prefix;
+            this.record = record;
+        }
+    }
+
     public enum FieldType {
         INT, DATE
     }
 
+    /** Serializes a record as its index, the number of fields, and the tagged fields */
+    static final class RecordSerializer implements ExternalSorter.Serializer<Record> {
+        private static final byte INT_TAG = 0;
+        private static final byte DATE_TAG = 1;
+
+        @Override
+        public int size(Record r) {
+            int size = 2 * Integer.BYTES;
+            for (Comparable f : r.fields) {
+                size += 1 + (f instanceof Integer ? Integer.BYTES : Long.BYTES);
+            }
+            return size;
+        }
+
+        @Override
+        public void write(Record r, ByteBuffer buf) {
+            buf.putInt(r.recordIndex);
+            buf.putInt(r.fields.size());
+            for (Comparable f : r.fields) {
+                if (f instanceof Integer) {
+                    buf.put(INT_TAG);
+                    buf.putInt((Integer) f);
+                } else {
+                    buf.put(DATE_TAG);
+                    buf.putLong(((Date) f).getTime());
+                }
+            }
+        }
+
+        @Override
+        public Record read(ByteBuffer buf) {
+            int recordIndex = buf.getInt();
+            int n = buf.getInt();
+            List<Comparable> fields = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                if (buf.get() == INT_TAG) {
+                    fields.add(buf.getInt());
+                } else {
+                    fields.add(new Date(buf.getLong()));
+                }
+            }
+            return new Record(fields, recordIndex);
+        }
+    }
+
+    public enum KeySelector {
+        /** The record itself is the key */
+        IDENTITY,
+        /** The key is a list that is built from the fields of the record */
+        COMPOSITE
+    }
+
     /**
      * Calculates a checksum over the result so that it can be verified. It forces
      * the implementations to iterate once in-order over the result.
@@ -70,23 +147,52 @@ public class PartialSortBenchmark {
     static class Checksum {
         long h = 0;
         long hStable = 0;
+        /** Number of objects that will be skipped before the checksum is updated */
+        int skip = 0;
+
+        Checksum() {
+        }
+
+        Checksum(int skip) {
+            this.skip = skip;
+        }
 
         public void add(Object obj) {
+            if (skip > 0) {
+                skip--;
+                return;
+            }
             h = (h << 2) ^ obj.hashCode();
             hStable = ((hStable << 2) ^ obj.hashCode()) << 2 + ((Record) obj).recordIndex;
 //            System.out.println("  " + obj + "  " + h);
         }
 
         public static Checksum of(Iterable<?> iterable) {
-            Checksum c = new Checksum();
+            return of(iterable, 0);
+        }
+
+        public static Checksum of(Iterable<?> iterable, int skip) {
+            Checksum c = new Checksum(skip);
             for (Object r : iterable) {
                 c.add(r);
             }
             return c;
         }
 
+        public static Checksum of(Iterator<?> iterator, int skip) {
+            Checksum c = new Checksum(skip);
+            while (iterator.hasNext()) {
+                c.add(iterator.next());
+            }
+            return c;
+        }
+
         public static Checksum of(Object[] array) {
-            Checksum c = new Checksum();
+            return of(array, 0);
+        }
+
+        public static Checksum of(Object[] array, int skip) {
+            Checksum c = new Checksum(skip);
             for (Object r : array) {
                 c.add(r);
             }
@@ -98,9 +204,228 @@ public class PartialSortBenchmark {
     @AuxCounters(Type.EVENTS)
     public static class Counters {
         public long comparisons;
+        public long keyExtractions;
         public int stableSort;
     }
 
+    @State(Scope.Benchmark)
+    public static class KeyState {
+
+        @Param({"IDENTITY", "COMPOSITE"})
+        public KeySelector keySelector;
+
+        public Function<Record, Object> keyFn;
+        public Comparator<Object> keyComparator;
+
+        private long keyCalls = 0;
+
+        @Setup(Level.Trial)
+        @SuppressWarnings("unchecked")
+        public void setup(QueryState iState) {
+            switch (keySelector) {
+                case IDENTITY:
+                    keyFn = r -> {
+                        this.keyCalls++;
+                        return r;
+                    };
+                    keyComparator = (a, b) -> iState.comparator.compare((Record) a, (Record) b);
+                    break;
+                case COMPOSITE:
+                    keyFn = r -> {
+                        this.keyCalls++;
+                        return new ArrayList<>(r.fields);
+                    };
+                    keyComparator = (a, b) -> {
+                        iState.cmpCalls++;
+                        List<Comparable> l1 = (List<Comparable>) a;
+                        List<Comparable> l2 = (List<Comparable>) b;
+                        for (int i = 0; i < l1.size(); i++) {
+                            int c = l1.get(i).compareTo(l2.get(i));
+                            if (c != 0)
+                                return c;
+                        }
+                        return 0;
+                    };
+                    break;
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void setupIteration() {
+            this.keyCalls = 0;
+        }
+
+        /** Reports the number of key extractions since the last submission */
+        void submitKeyCalls(Counters cmpCount) {
+            cmpCount.keyExtractions = keyCalls;
+            this.keyCalls = 0;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ParallelState {
+
+        @Param({"1", "2", "4", "8"})
+        public int threads;
+
+        public ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            pool = new ForkJoinPool(threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ArityState {
+
+        /** Number of children of each node of the heap */
+        @Param({"4", "8"})
+        public int arity;
+    }
+
+    @State(Scope.Benchmark)
+    public static class BatchState {
+
+        @Param({"64", "1024"})
+        public int batchSize;
+
+        public Object[] data;
+
+        @Setup(Level.Trial)
+        public void setup(QueryState iState) {
+            data = iState.data.toArray();
+        }
+    }
+
+    /** Provides the raw fields of the tuples, before they are turned into records */
+    @State(Scope.Benchmark)
+    public static class ScanState {
+
+        public Comparable[][] rows;
+
+        @Setup(Level.Trial)
+        public void setup(QueryState iState) {
+            rows = new Comparable[iState.data.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = iState.data.get(i).fields.toArray(new Comparable[0]);
+            }
+        }
+    }
+
+    /**
+     * Slides a window of the last 'windowSize' tuples across the data, and takes
+     * the top-N of the window after every 'slide' tuples.
+     */
+    @State(Scope.Benchmark)
+    public static class WindowState {
+
+        @Param({"10000"})
+        public int windowSize;
+        @Param({"100", "1000"})
+        public int slide;
+
+        /** The checksum of the results of all windows */
+        private Checksum expected;
+
+        @Setup(Level.Trial)
+        public void setup(QueryState iState) {
+            // sorting every window would take much longer than the benchmark itself,
+            // thus the expected results come from the verified TopNHeap
+            expected = new Checksum();
+            List<Record> data = iState.data;
+            for (int end = firstEnd(); end <= data.size(); end += slide) {
+                TopNHeap<Record, Record> min = new TopNHeap<>(r -> r, iState.internalComparator,
+                        iState.fetch(), iState.offset);
+                for (int i = Math.max(0, end - windowSize); i < end; i++) {
+                    min.offer(data.get(i));
+                }
+                for (Object r : min.getResult()) {
+                    expected.add(r);
+                }
+            }
+        }
+
+        /** The number of tuples until the first result is taken */
+        int firstEnd() {
+            return Math.min(windowSize, slide);
+        }
+
+        Object submitWindows(QueryState iState, Checksum c, Counters cmpCount) {
+            if (c.h != expected.h || c.hStable != expected.hStable) {
+                throw new IllegalStateException("checksum was " + c.hStable + " but should have been " + expected.hStable);
+            }
+            return iState.submitChecksum(iState.checksum, cmpCount, true);
+        }
+    }
+
+    /** Provides the fields of the tuples column by column */
+    @State(Scope.Benchmark)
+    public static class ColumnarState {
+
+        public ColumnarDataset dataset;
+
+        @Setup(Level.Trial)
+        public void setup(QueryState iState) {
+            long[][] columns = new long[iState.fieldsNumber][iState.data.size()];
+            for (int i = 0; i < iState.data.size(); i++) {
+                List<Comparable> fields = iState.data.get(i).fields;
+                for (int j = 0; j < columns.length; j++) {
+                    Comparable f = fields.get(j);
+                    columns[j][i] = f instanceof Date ? ((Date) f).getTime() : ((Integer) f).longValue();
+                }
+            }
+            dataset = new ColumnarDataset(columns);
+        }
+    }
+
+    /**
+     * Skips the rows whose first field is bigger than the one of the threshold,
+     * as they cannot beat it whatever their other fields are.
+     */
+    static final class FirstFieldFilter implements Consumer<Record> {
+        private Comparable cutoff = null;
+
+        @Override
+        public void accept(Record threshold) {
+            cutoff = threshold.fields.get(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean skip(Comparable[] row) {
+            return cutoff != null && row[0].compareTo(cutoff) > 0;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SpillState {
+
+        /** The serialized size of the records that are sorted in memory, in bytes */
+        @Param({"1048576", "67108864"})
+        public long memoryBudget;
+    }
+
+    /** Provides a heap that already contains all tuples, to measure only the result */
+    @State(Scope.Thread)
+    public static class FilledHeapState {
+
+        public TopNHeap<Record, Record> heap;
+
+        @Setup(Level.Invocation)
+        public void setup(QueryState iState) {
+            heap = new TopNHeap<>(r -> r, iState.comparator, iState.fetch(), iState.offset);
+            for (Record i : iState.data) {
+                heap.offer(i);
+            }
+            iState.cmpCalls = 0;
+        }
+    }
+
     @State(Scope.Benchmark)
     public static class QueryState {
 
@@ -108,18 +433,27 @@ public class PartialSortBenchmark {
         public int tupleNumber;
         @Param({"-1", "10", "100", "10000"})
         public int limit;
+        @Param({"0", "1000"})
+        public int offset;
         @Param({"2"})
         public int fieldsNumber;
         @Param("INT")
         public FieldType fieldType;
+        @Param("RANDOM")
+        public DataGenerator.Distribution distribution;
 
         public Comparator<Record> comparator;
 
         private List<Record> data;
         private Comparator<Record> internalComparator;
         private Checksum checksum = null;
+        /** The first tuple of the expected result, null if the result is empty */
+        private Record expectedFirst = null;
         private Checksum proposedChecksum = null;
         private long cmpCalls = 0;
+        private int maxInt;
+        /** Whether the normalized keys of the records fit into their prefix */
+        private boolean completeNormalizedKey;
 
         /** Has to be submitted, otherwise the result will not be accepted */
         Checksum submitChecksum(Checksum c, Counters cmpCount, boolean assertStableSort) {
@@ -138,28 +472,26 @@ public class PartialSortBenchmark {
             return c;
         }
 
+        /**
+         * Accepts a result of which only the first tuple was consumed. The tuple is
+         * verified instead of the checksum.
+         */
+        Object submitFirst(Object first, Counters cmpCount) {
+            if (first != expectedFirst) {
+                throw new IllegalStateException("first tuple was " + first + " but should have been " + expectedFirst);
+            }
+            return submitChecksum(checksum, cmpCount, false);
+        }
+
         @Setup(Level.Trial)
         public void setup() {
             data = new ArrayList<>(tupleNumber);
-            Random rand = new Random(22);
             // make sure that some tuples with compare(a,b) == 0 exist,
             // to check whether the algorithm handles all cases correctly
-            int maxInt = Math.max(3, (int) Math.pow(tupleNumber, 1. / this.fieldsNumber));
+            maxInt = Math.max(3, (int) Math.pow(tupleNumber, 1. / this.fieldsNumber));
             recordCounter = 0;
-            for (int i = 0; i < tupleNumber; i++) {
-                List<Comparable> fields = new ArrayList<>(this.fieldsNumber);
-                for (int j = 0; j < this.fieldsNumber; j++) {
-                    Comparable<?> value = null;
-                    switch (fieldType) {
-                        case INT:
-                            value = rand.nextInt(maxInt);
-                            break;
-                        case DATE:
-                            value = new Date(rand.nextLong());
-                            break;
-                    }
-                    fields.add(value);
-                }
+            DataGenerator generator = new DataGenerator(fieldType, fieldsNumber, maxInt, 22);
+            for (List<Comparable> fields : generator.generate(distribution, tupleNumber, keep())) {
                 data.add(new Record(fields));
             }
             Comparator<Record> all = ((o1, o2) -> o1.fields.get(0).compareTo(o2.fields.get(0)));
@@ -168,6 +500,7 @@ public class PartialSortBenchmark {
                 all = all.thenComparing((o1, o2) -> o1.fields.get(findex).compareTo(o2.fields.get(findex)));
             }
             internalComparator = all;
+            completeNormalizedKey = data.isEmpty() || NormalizedKeyEncoder.isComplete(data.get(0).fields);
             comparator = (a, b) -> {
                 this.cmpCalls++;
                 return internalComparator.compare(a, b);
@@ -176,9 +509,65 @@ public class PartialSortBenchmark {
             // calculate a checksum for the expected result
             List<Record> sorted = new ArrayList<>(data);
             sorted.sort(internalComparator);
-            int resultSize = limit < 0 ? Integer.MAX_VALUE : limit;
-            resultSize = Math.min(resultSize, sorted.size());
-            checksum = Checksum.of(sorted.subList(0, resultSize));
+            int from = Math.min(offset, sorted.size());
+            int to = (int) Math.min((long) from + fetch(), sorted.size());
+            checksum = Checksum.of(sorted.subList(from, to));
+            expectedFirst = from < to ? sorted.get(from) : null;
+        }
+
+        /** The maximum number of tuples in the result */
+        int fetch() {
+            return limit < 0 ? Integer.MAX_VALUE : limit;
+        }
+
+        /**
+         * The number of tuples an implementation has to keep to produce the result,
+         * that is limit + offset, or -1 if there is no limit.
+         */
+        int keep() {
+            return limit < 0 ? -1 : (int) Math.min((long) limit + offset, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Whether the INT fields of a record can be packed into a single primitive
+         * key with at most the given number of bits, see {@link #intKey(Record)}.
+         */
+        boolean hasPrimitiveKey(int bits) {
+            return fieldType == FieldType.INT && Math.pow(maxInt, fieldsNumber) <= Math.pow(2, bits - 1);
+        }
+
+        /**
+         * Packs the INT fields of a record into an int, such that comparing the
+         * keys gives the same result as {@link #comparator}.
+         */
+        int intKey(Record r) {
+            int key = 0;
+            for (Comparable f : r.fields) {
+                key = key * maxInt + (Integer) f;
+            }
+            return key;
+        }
+
+        /** Same as {@link #intKey(Record)}, but packs the fields into a long */
+        long longKey(Record r) {
+            long key = 0;
+            for (Comparable f : r.fields) {
+                key = key * maxInt + (Integer) f;
+            }
+            return key;
+        }
+
+        /** The prefix of the normalized key of a record, see {@link NormalizedKeyEncoder} */
+        long normalizedKey(Record r) {
+            return NormalizedKeyEncoder.prefix(r.fields);
+        }
+
+        /**
+         * The comparator that has to be used when the normalized keys of two records
+         * are equal, or null if they are complete.
+         */
+        Comparator<Record> normalizedKeyTieBreaker() {
+            return completeNormalizedKey ? null : comparator;
         }
 
         @Setup(Level.Iteration)
@@ -218,12 +607,12 @@ public class PartialSortBenchmark {
         for (Record i : iState.data) {
             treeMapAddEntry(map, i);
             size++;
-            if (iState.limit > 0 && size > iState.limit) {
+            if (iState.limit > 0 && size > iState.keep()) {
                 treeMapRemoveLastEntry(map);
                 size--;
             }
         }
-        Checksum c = new Checksum();
+        Checksum c = new Checksum(iState.offset);
         map.forEach((k, v) -> v.forEach(c::add));
         return iState.submitChecksum(c, cmpCount, true);
     }
@@ -233,7 +622,7 @@ public class PartialSortBenchmark {
         TreeMap<Record, List<Record>> map = new TreeMap<>(iState.comparator);
         long size = 0;
         for (Record i : iState.data) {
-            if (iState.limit > 0 && size >= iState.limit) {
+            if (iState.limit > 0 && size >= iState.keep()) {
                 if (iState.comparator.compare(i, map.lastKey()) >= 0)
                     continue;
                 treeMapRemoveLastEntry(map);
@@ -242,18 +631,66 @@ public class PartialSortBenchmark {
             treeMapAddEntry(map, i);
             size++;
         }
-        Checksum c = new Checksum();
+        Checksum c = new Checksum(iState.offset);
         map.forEach((k, v) -> v.forEach(c::add));
         return iState.submitChecksum(c, cmpCount, true);
     }
 
     @Benchmark
     public Object collectionSort(QueryState iState, Counters cmpCount) {
-        if (iState.limit >= 0 && iState.limit < iState.tupleNumber)
+        if (iState.limit >= 0 && iState.keep() < iState.tupleNumber)
             return ignoreTrial();
         List<Record> list = new ArrayList<>(iState.data);
         Collections.sort(list, iState.comparator);
-        return iState.submitChecksum(Checksum.of(list), cmpCount, true);
+        return iState.submitChecksum(Checksum.of(list, iState.offset), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object collectionSortNormalizedKey(QueryState iState, Counters cmpCount) {
+        if (iState.limit >= 0 && iState.keep() < iState.tupleNumber)
+            return ignoreTrial();
+        PrefixedRecord[] entries = new PrefixedRecord[iState.data.size()];
+        for (int i = 0; i < entries.length; i++) {
+            Record r = iState.data.get(i);
+            entries[i] = new PrefixedRecord(iState.normalizedKey(r), r);
+        }
+        Comparator<Record> tieBreaker = iState.normalizedKeyTieBreaker();
+        Arrays.sort(entries, (a, b) -> {
+            int c = Long.compare(a.prefix, b.prefix);
+            if (c == 0 && tieBreaker != null)
+                return tieBreaker.compare(a.record, b.record);
+            return c;
+        });
+        Checksum c = new Checksum(iState.offset);
+        for (PrefixedRecord e : entries) {
+            c.add(e.record);
+        }
+        return iState.submitChecksum(c, cmpCount, true);
+    }
+
+    /** Same as {@link #collectionSort}, but on the columns instead of the records */
+    @Benchmark
+    public Object columnarSort(QueryState iState, ColumnarState cState, Counters cmpCount) {
+        if (iState.limit >= 0 && iState.keep() < iState.tupleNumber)
+            return ignoreTrial();
+        return iState.submitChecksum(checksumOfRows(iState, cState.dataset.sort(), iState.offset), cmpCount, true);
+    }
+
+    /**
+     * Sorts with spilling to disk. Run with "-p tupleNumber=100000000" for a data
+     * set that is bigger than the budget by orders of magnitude.
+     */
+    @Benchmark
+    public Object externalSort(QueryState iState, SpillState sState, Counters cmpCount) throws IOException {
+        if (iState.limit >= 0 && iState.keep() < iState.tupleNumber)
+            return ignoreTrial();
+        try (ExternalSorter<Record> sorter = new ExternalSorter<>(iState.comparator, new RecordSerializer(),
+                sState.memoryBudget)) {
+            for (Record i : iState.data) {
+                sorter.offer(i);
+            }
+            return iState.submitChecksum(Checksum.of(sorter.getResult(), iState.offset), cmpCount, true);
+        }
     }
 
     @Benchmark
@@ -263,7 +700,7 @@ public class PartialSortBenchmark {
             if (iState.limit == -1) {
                 pq.add(i);
             } else {
-                if (pq.size() < iState.limit) {
+                if (pq.size() < iState.keep()) {
                     pq.add(i);
                 } else {
                     if (iState.comparator.compare(pq.peek(), i) > 0) {
@@ -273,9 +710,9 @@ public class PartialSortBenchmark {
                 }
             }
         }
-        Record[] arr = pq.toArray(new Record[iState.limit < 0 ? pq.size() : iState.limit]);
+        Record[] arr = pq.toArray(new Record[pq.size()]);
         Arrays.sort(arr, iState.comparator);
-        return iState.submitChecksum(Checksum.of(arr), cmpCount, false);
+        return iState.submitChecksum(Checksum.of(arr, iState.offset), cmpCount, false);
     }
 
     @Benchmark
@@ -283,7 +720,7 @@ public class PartialSortBenchmark {
         if (state.limit < 0) {
             return ignoreTrial();
         }
-        int limit = state.limit < 0 ? Integer.MAX_VALUE : state.limit;
+        int limit = state.keep();
         Comparator<Record> cmp = (a, b) -> {
             int c = state.comparator.compare(a, b);
             return c == 0 ? -1 : c;
@@ -305,40 +742,386 @@ public class PartialSortBenchmark {
                     list.add(-index - 1, i);
             }
         }
-        return state.submitChecksum(Checksum.of(list), cmpCount, false);
+        return state.submitChecksum(Checksum.of(list, state.offset), cmpCount, false);
     }
 
     @Benchmark
     public Object topnHeap(QueryState iState, Counters cmpCount) {
         TopNHeap<Record, Record> min = new TopNHeap<>(r -> r, iState.comparator,
-                iState.limit < 0 ? Integer.MAX_VALUE : iState.limit, 0);
+                iState.fetch(), iState.offset);
         for (Record i : iState.data) {
             min.offer(i);
         }
         return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
     }
 
+    /** Offers every tuple to a single top-N, which expires the tuples that leave the window */
+    @Benchmark
+    public Object slidingWindowTopN(QueryState iState, WindowState wState, Counters cmpCount) {
+        SlidingWindowTopN<Record, Record> window = new SlidingWindowTopN<>(r -> r, iState.comparator,
+                wState.windowSize, iState.fetch(), iState.offset);
+        List<Record> data = iState.data;
+        Checksum c = new Checksum();
+        int next = wState.firstEnd();
+        for (int i = 0; i < data.size(); i++) {
+            window.offer(data.get(i));
+            if (i + 1 == next) {
+                for (Object r : window.getResult()) {
+                    c.add(r);
+                }
+                next += wState.slide;
+            }
+        }
+        return wState.submitWindows(iState, c, cmpCount);
+    }
+
+    /** Same results as {@link #slidingWindowTopN}, but builds a new heap for every window */
+    @Benchmark
+    public Object slidingWindowRebuild(QueryState iState, WindowState wState, Counters cmpCount) {
+        List<Record> data = iState.data;
+        Checksum c = new Checksum();
+        for (int end = wState.firstEnd(); end <= data.size(); end += wState.slide) {
+            TopNHeap<Record, Record> min = new TopNHeap<>(r -> r, iState.comparator,
+                    iState.fetch(), iState.offset);
+            for (int i = Math.max(0, end - wState.windowSize); i < end; i++) {
+                min.offer(data.get(i));
+            }
+            for (Object r : min.getResult()) {
+                c.add(r);
+            }
+        }
+        return wState.submitWindows(iState, c, cmpCount);
+    }
+
+    /** Same as {@link #topnHeap}, but on the columns instead of the records */
+    @Benchmark
+    public Object columnarTopN(QueryState iState, ColumnarState cState, Counters cmpCount) {
+        int[] rows = cState.dataset.topN(iState.fetch(), iState.offset);
+        return iState.submitChecksum(checksumOfRows(iState, rows, 0), cmpCount, true);
+    }
+
+    private static Checksum checksumOfRows(QueryState iState, int[] rows, int skip) {
+        Checksum c = new Checksum(skip);
+        for (int row : rows) {
+            c.add(iState.data.get(row));
+        }
+        return c;
+    }
+
+    @Benchmark
+    public Object topnHeapIterator(QueryState iState, Counters cmpCount) {
+        TopNHeap<Record, Record> min = new TopNHeap<>(r -> r, iState.comparator,
+                iState.fetch(), iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        Iterable<Record> result = min::iterator;
+        return iState.submitChecksum(Checksum.of(result), cmpCount, true);
+    }
+
+    /** Time until the first tuple of the result is available when streaming */
+    @Benchmark
+    public Object firstRowIterator(QueryState iState, FilledHeapState hState, Counters cmpCount) {
+        Iterator<Record> it = hState.heap.iterator();
+        return iState.submitFirst(it.hasNext() ? it.next() : null, cmpCount);
+    }
+
+    /** Time until the first tuple of the result is available when materializing */
+    @Benchmark
+    public Object firstRowMaterialized(QueryState iState, FilledHeapState hState, Counters cmpCount) {
+        Object[] result = hState.heap.getResult();
+        return iState.submitFirst(result.length > 0 ? result[0] : null, cmpCount);
+    }
+
     @Benchmark
     public Object topnHeap2(QueryState iState, Counters cmpCount) {
         TopNHeap2<Record, Record> min = new TopNHeap2<>(r -> r, iState.comparator,
-                iState.limit < 0 ? Integer.MAX_VALUE : iState.limit, 0);
+                iState.fetch(), iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    /** Builds a record for every row, as a scan would do without pushdown */
+    @Benchmark
+    public Object topnHeapScan(QueryState iState, ScanState sState, Counters cmpCount) {
+        TopNHeap<Record, Record> min = new TopNHeap<>(r -> r, iState.comparator,
+                iState.fetch(), iState.offset);
+        Comparable[][] rows = sState.rows;
+        for (int i = 0; i < rows.length; i++) {
+            min.offer(new Record(Arrays.asList(rows[i]), i));
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    /**
+     * Same as {@link #topnHeapScan}, but the heap pushes its threshold down to the
+     * scan, which does not build the records that cannot be kept.
+     */
+    @Benchmark
+    public Object topnHeapThresholdPushdown(QueryState iState, ScanState sState, Counters cmpCount) {
+        TopNHeap<Record, Record> min = new TopNHeap<>(r -> r, iState.comparator,
+                iState.fetch(), iState.offset);
+        FirstFieldFilter filter = new FirstFieldFilter();
+        min.setThresholdListener(filter);
+        Comparable[][] rows = sState.rows;
+        for (int i = 0; i < rows.length; i++) {
+            if (!filter.skip(rows[i])) {
+                min.offer(new Record(Arrays.asList(rows[i]), i));
+            }
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object dAryTopNHeap(QueryState iState, ArityState aState, Counters cmpCount) {
+        DAryTopNHeap<Record, Record> min = new DAryTopNHeap<>(r -> r, iState.comparator, aState.arity,
+                iState.fetch(), iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    /**
+     * Note that the comparisons of the worker threads are counted without
+     * synchronization, so the comparisons counter is only an approximation.
+     */
+    @Benchmark
+    public Object parallelTopN(QueryState iState, ParallelState pState, Counters cmpCount) {
+        ParallelTopN<Record, Record> topN = new ParallelTopN<>(r -> r, iState.comparator,
+                iState.fetch(), iState.offset, pState.pool, pState.threads);
+        return iState.submitChecksum(Checksum.of(topN.getResult(iState.data)), cmpCount, true);
+    }
+
+    /**
+     * Same split of the data as {@link #parallelTopN}, but the threads offer
+     * their items in batches to a shared {@link ConcurrentTopNHeap} instead of
+     * merging their results at the end.
+     */
+    @Benchmark
+    public Object concurrentTopN(QueryState iState, ParallelState pState, Counters cmpCount) {
+        return concurrentTopN(iState, pState, cmpCount, true);
+    }
+
+    /** Same as {@link #concurrentTopN}, but every item is offered on its own */
+    @Benchmark
+    public Object concurrentTopNUnbatched(QueryState iState, ParallelState pState, Counters cmpCount) {
+        return concurrentTopN(iState, pState, cmpCount, false);
+    }
+
+    private Object concurrentTopN(QueryState iState, ParallelState pState, Counters cmpCount, boolean batched) {
+        ConcurrentTopNHeap<Record, Record> topN = new ConcurrentTopNHeap<>(r -> r, iState.comparator,
+                iState.fetch(), iState.offset);
+        List<Record> data = iState.data;
+        int n = data.size();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(pState.threads);
+        for (int c = 0; c < pState.threads; c++) {
+            int from = (int) ((long) n * c / pState.threads);
+            int to = (int) ((long) n * (c + 1) / pState.threads);
+            tasks.add(pState.pool.submit(() -> {
+                if (batched) {
+                    ConcurrentTopNHeap<Record, Record>.Producer producer = topN.newProducer();
+                    for (int i = from; i < to; i++) {
+                        producer.offer(data.get(i));
+                    }
+                    producer.flush();
+                } else {
+                    for (int i = from; i < to; i++) {
+                        topN.offer(data.get(i));
+                    }
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        // ties between the threads are resolved in an arbitrary order
+        return iState.submitChecksum(Checksum.of(topN.getResult()), cmpCount, false);
+    }
+
+    @Benchmark
+    public Object topnHeapKeySelector(QueryState iState, KeyState kState, Counters cmpCount) {
+        return topnHeapWithKeys(iState, kState, cmpCount, false);
+    }
+
+    @Benchmark
+    public Object topnHeapCachedKeys(QueryState iState, KeyState kState, Counters cmpCount) {
+        return topnHeapWithKeys(iState, kState, cmpCount, true);
+    }
+
+    private Object topnHeapWithKeys(QueryState iState, KeyState kState, Counters cmpCount, boolean cacheKeys) {
+        TopNHeap<Record, Object> min = new TopNHeap<>(kState.keyFn, kState.keyComparator,
+                iState.fetch(), iState.offset, cacheKeys);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        kState.submitKeyCalls(cmpCount);
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object topnHeap2KeySelector(QueryState iState, KeyState kState, Counters cmpCount) {
+        return topnHeap2WithKeys(iState, kState, cmpCount, false);
+    }
+
+    @Benchmark
+    public Object topnHeap2CachedKeys(QueryState iState, KeyState kState, Counters cmpCount) {
+        return topnHeap2WithKeys(iState, kState, cmpCount, true);
+    }
+
+    private Object topnHeap2WithKeys(QueryState iState, KeyState kState, Counters cmpCount, boolean cacheKeys) {
+        TopNHeap2<Record, Object> min = new TopNHeap2<>(kState.keyFn, kState.keyComparator,
+                iState.fetch(), iState.offset, cacheKeys);
         for (Record i : iState.data) {
             min.offer(i);
         }
+        kState.submitKeyCalls(cmpCount);
         return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
     }
 
+    @Benchmark
+    public Object topnHeapInt(QueryState iState, Counters cmpCount) {
+        if (!iState.hasPrimitiveKey(Integer.SIZE)) {
+            return ignoreTrial();
+        }
+        IntTopNHeap<Record> min = new IntTopNHeap<>(iState::intKey,
+                iState.fetch(), iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object radixTopN(QueryState iState, Counters cmpCount) {
+        if (!iState.hasPrimitiveKey(Integer.SIZE)) {
+            return ignoreTrial();
+        }
+        RadixTopN<Record> topN = new RadixTopN<>(iState::intKey, iState.fetch(), iState.offset);
+        return iState.submitChecksum(Checksum.of(topN.getResult(iState.data)), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object topnHeapLong(QueryState iState, Counters cmpCount) {
+        if (!iState.hasPrimitiveKey(Long.SIZE)) {
+            return ignoreTrial();
+        }
+        LongTopNHeap<Record> min = new LongTopNHeap<>(iState::longKey,
+                iState.fetch(), iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object topnHeapNormalizedKey(QueryState iState, Counters cmpCount) {
+        LongTopNHeap<Record> min = new LongTopNHeap<>(iState::normalizedKey, iState.normalizedKeyTieBreaker(),
+                iState.fetch(), iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    /**
+     * Keeps the heap outside of the Java heap, run with "-prof gc" to compare the
+     * allocation rate with {@link #topnHeap}.
+     */
+    @Benchmark
+    public Object topnHeapOffHeap(QueryState iState, Counters cmpCount) {
+        if (!iState.hasPrimitiveKey(Long.SIZE)) {
+            return ignoreTrial();
+        }
+        OffHeapTopNHeap<Record> min = new OffHeapTopNHeap<>(iState::longKey, iState.fetch(), iState.offset);
+        List<Record> data = iState.data;
+        for (int i = 0; i < data.size(); i++) {
+            min.offer(data.get(i), i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult(data::get)), cmpCount, true);
+    }
+
     @Benchmark
     public Object limitSort(QueryState iState, Counters cmpCount) {
-        LimitSort<Record> min = new LimitSort<>(iState.comparator, iState.limit);
+        LimitSort<Record> min = new LimitSort<>(iState.comparator, iState.limit, iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object selectTopN(QueryState iState, Counters cmpCount) {
+        SelectTopN<Record> min = new SelectTopN<>(iState.comparator, iState.limit, iState.offset);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    /**
+     * Picks the implementation, knowing the size of the input. Run the whole
+     * parameter space to compare it with the best of the fixed implementations.
+     */
+    @Benchmark
+    public Object topNSorter(QueryState iState, Counters cmpCount) {
+        TopNSorter<Record> min = new TopNSorter<>(iState.comparator, iState.limit, iState.offset, iState.tupleNumber);
+        for (Record i : iState.data) {
+            min.offer(i);
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    /** Same as {@link #topNSorter}, but the input size is not known in advance */
+    @Benchmark
+    public Object topNSorterUnknownSize(QueryState iState, Counters cmpCount) {
+        TopNSorter<Record> min = new TopNSorter<>(iState.comparator, iState.limit, iState.offset, -1);
         for (Record i : iState.data) {
             min.offer(i);
         }
         return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
     }
 
-    public static void main(String[] args) throws RunnerException {
-        Options opt = new OptionsBuilder().include(PartialSortBenchmark.class.getSimpleName()).forks(1).build();
+    @Benchmark
+    public Object topnHeapBatch(QueryState iState, BatchState bState, Counters cmpCount) {
+        TopNHeap<Record, Record> min = new TopNHeap<>(r -> r, iState.comparator,
+                iState.fetch(), iState.offset);
+        Object[] data = bState.data;
+        for (int from = 0; from < data.length; from += bState.batchSize) {
+            min.offerAll(data, from, Math.min(from + bState.batchSize, data.length));
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object topnHeap2Batch(QueryState iState, BatchState bState, Counters cmpCount) {
+        TopNHeap2<Record, Record> min = new TopNHeap2<>(r -> r, iState.comparator,
+                iState.fetch(), iState.offset);
+        Object[] data = bState.data;
+        for (int from = 0; from < data.length; from += bState.batchSize) {
+            min.offerAll(data, from, Math.min(from + bState.batchSize, data.length));
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    @Benchmark
+    public Object limitSortBatch(QueryState iState, BatchState bState, Counters cmpCount) {
+        LimitSort<Record> min = new LimitSort<>(iState.comparator, iState.limit, iState.offset);
+        Object[] data = bState.data;
+        for (int from = 0; from < data.length; from += bState.batchSize) {
+            min.offerAll(data, from, Math.min(from + bState.batchSize, data.length));
+        }
+        return iState.submitChecksum(Checksum.of(min.getResult()), cmpCount, true);
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options opt = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(PartialSortBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
         new Runner(opt).run();
     }
 }
@@ -0,0 +1,153 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Computes the top-N of a list of elements with an int key without comparing
+ * the elements against each other. A counting pass over the most significant
+ * bits of the keys finds the bucket that contains the N-th element. Everything
+ * in the buckets before it is part of the result, everything after it is not,
+ * and only the bucket itself is refined with the next bits, until it is small
+ * enough or all of its keys are equal.
+ * <p>
+ * Finally the selected elements are sorted by their key and their position in
+ * the list, so elements with equal keys keep their order of arrival.
+ * </p>
+ *
+ * @param <TSource> type of the elements
+ */
+public class RadixTopN<TSource> {
+    /** Number of key bits that are used for the buckets of one pass */
+    static final int RADIX_BITS = 11;
+    /** Candidates are sorted directly once there are not more than that */
+    static final int MIN_REFINE_SIZE = 256;
+
+    private final ToIntFunction<TSource> keyFn;
+    private final int fetch;
+    private final int offset;
+
+    public RadixTopN(ToIntFunction<TSource> keySelector, int fetch, int offset) {
+        this.keyFn = keySelector;
+        this.fetch = fetch;
+        this.offset = offset;
+    }
+
+    /**
+     * Returns an array with at most 'fetch' entries, that contains the sorted
+     * entries of the data, while skipping the first 'offset' elements.
+     */
+    public Object[] getResult(List<TSource> data) {
+        int n = data.size();
+        int keep = (int) Math.min((long) this.fetch + this.offset, n);
+        if (keep <= this.offset) {
+            return new Object[0];
+        }
+
+        int[] keys = new int[n];
+        int minKey = Integer.MAX_VALUE;
+        int maxKey = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            int key = this.keyFn.applyAsInt(data.get(i));
+            keys[i] = key;
+            minKey = Math.min(minKey, key);
+            maxKey = Math.max(maxKey, key);
+        }
+
+        // the selected elements, packed as key and position, see pack()
+        long[] selected = new long[keep];
+        int selectedSize = 0;
+        // the candidates in order of arrival, null for all the elements of the list
+        int[] candidates = null;
+        int candidateCount = n;
+        int needed = keep;
+        long lo = minKey;
+        long hi = maxKey;
+        while (needed < candidateCount && lo < hi && candidateCount > MIN_REFINE_SIZE) {
+            long range = hi - lo;
+            int shift = Math.max(0, Long.SIZE - Long.numberOfLeadingZeros(range) - RADIX_BITS);
+            int[] counts = new int[(int) (range >>> shift) + 1];
+            for (int j = 0; j < candidateCount; j++) {
+                int i = candidates == null ? j : candidates[j];
+                counts[(int) ((keys[i] - lo) >>> shift)]++;
+            }
+
+            int bucket = 0;
+            int below = 0;
+            while (below + counts[bucket] < needed) {
+                below += counts[bucket++];
+            }
+
+            int[] next = new int[counts[bucket]];
+            int nextCount = 0;
+            for (int j = 0; j < candidateCount; j++) {
+                int i = candidates == null ? j : candidates[j];
+                int b = (int) ((keys[i] - lo) >>> shift);
+                if (b < bucket) {
+                    selected[selectedSize++] = pack(keys[i], i);
+                } else if (b == bucket) {
+                    next[nextCount++] = i;
+                }
+            }
+
+            candidates = next;
+            candidateCount = nextCount;
+            needed -= below;
+            lo += (long) bucket << shift;
+            hi = Math.min(hi, lo + (1L << shift) - 1);
+        }
+
+        if (needed >= candidateCount || lo == hi) {
+            // either all candidates are needed, or they are equal and the first ones win
+            for (int j = 0; j < Math.min(needed, candidateCount); j++) {
+                int i = candidates == null ? j : candidates[j];
+                selected[selectedSize++] = pack(keys[i], i);
+            }
+        } else {
+            long[] rest = new long[candidateCount];
+            for (int j = 0; j < candidateCount; j++) {
+                int i = candidates == null ? j : candidates[j];
+                rest[j] = pack(keys[i], i);
+            }
+            Arrays.sort(rest);
+            System.arraycopy(rest, 0, selected, selectedSize, needed);
+            selectedSize += needed;
+        }
+
+        Arrays.sort(selected, 0, selectedSize);
+        Object[] result = new Object[selectedSize - this.offset];
+        for (int r = 0; r < result.length; r++) {
+            result[r] = data.get((int) selected[this.offset + r]);
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Packs the key into the upper and the position into the lower half of a long,
+     * so that comparing the longs orders by key and then by position.
+     */
+    private static long pack(int key, int position) {
+        return ((long) key << Integer.SIZE) | position;
+    }
+}
@@ -0,0 +1,262 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Top-N implementation with a limit and an offset, that appends the items into
+ * a buffer of size 2 * (limit + offset). When the buffer is full, an
+ * introselect moves the 'limit + offset' smallest items to the front of the
+ * buffer and the rest is dropped. This gives amortized O(n)
+ * instead of the O(n log(limit)) of a heap.
+ * <p>
+ * The implementation is stable: items that are equal according to the
+ * comparator are ordered by their arrival, which makes the order used for
+ * selection and sorting a total order.
+ * </p>
+ *
+ * @param <E> type of the items
+ */
+public class SelectTopN<E> {
+    static final int MAX_INIT_ARRAY_SIZE = 1024;
+    static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final Comparator<? super E> cmp;
+    /** Number of items that need to be kept, i.e. limit + offset */
+    private final int limit;
+    private final int offset;
+    private final int capacity;
+
+    private int size = 0;
+    private int time = Integer.MIN_VALUE;
+
+    /** Biggest item that was kept by the last compaction, null before */
+    private E threshold = null;
+
+    private Object[] buffer;
+    /** Stores the order of arrival of the items in the buffer */
+    private int[] order;
+
+    public SelectTopN(Comparator<? super E> comparator, int limit, int offset) {
+        this.cmp = comparator;
+        this.limit = limit < 0 ? Integer.MAX_VALUE : (int) Math.min((long) limit + offset, Integer.MAX_VALUE);
+        this.offset = offset;
+        this.capacity = (int) Math.min(2L * this.limit, MAX_ARRAY_SIZE);
+
+        int arrayLen = Math.min(this.capacity, MAX_INIT_ARRAY_SIZE);
+        this.buffer = new Object[arrayLen];
+        this.order = new int[arrayLen];
+    }
+
+    /**
+     * Offers a new item.
+     */
+    public void offer(E e) {
+        if (this.threshold != null && this.cmp.compare(e, this.threshold) >= 0) {
+            return;
+        }
+
+        if (this.size == this.buffer.length) {
+            if (this.size < this.capacity) {
+                this.growSize();
+            } else {
+                this.compact();
+                if (this.limit == 0 || this.cmp.compare(e, this.threshold) >= 0) {
+                    return;
+                }
+            }
+        }
+
+        this.buffer[this.size] = e;
+        this.order[this.size] = this.time++;
+        this.size++;
+    }
+
+    /**
+     * Returns an array with at most 'limit' entries, that contains the sorted
+     * entries of the items offered, while skipping the first 'offset' items.
+     */
+    public Object[] getResult() {
+        if (this.size > this.limit) {
+            this.select(0, this.size, this.limit - 1);
+            this.size = this.limit;
+        }
+        this.sort(0, this.size, depthLimit(this.size));
+        return Arrays.copyOfRange(this.buffer, Math.min(this.offset, this.size), this.size);
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    private void growSize() {
+        int newLen = (int) Math.min(this.capacity, this.buffer.length * 2L);
+        this.buffer = Arrays.copyOf(this.buffer, newLen);
+        this.order = Arrays.copyOf(this.order, newLen);
+    }
+
+    /** Keeps the 'limit' smallest items and drops the rest */
+    @SuppressWarnings("unchecked")
+    private void compact() {
+        if (this.limit == 0) {
+            this.size = 0;
+            return;
+        }
+        this.select(0, this.size, this.limit - 1);
+        Arrays.fill(this.buffer, this.limit, this.size, null);
+        this.size = this.limit;
+        this.threshold = (E) this.buffer[this.limit - 1];
+    }
+
+    private static int depthLimit(int len) {
+        return 2 * (32 - Integer.numberOfLeadingZeros(len));
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean lessThan(int a, int b) {
+        int c = this.cmp.compare((E) this.buffer[a], (E) this.buffer[b]);
+        if (c == 0) {
+            return this.order[a] < this.order[b];
+        }
+        return c < 0;
+    }
+
+    private void swap(int a, int b) {
+        Object o = this.buffer[a];
+        this.buffer[a] = this.buffer[b];
+        this.buffer[b] = o;
+        int t = this.order[a];
+        this.order[a] = this.order[b];
+        this.order[b] = t;
+    }
+
+    /**
+     * Rearranges the items between 'from' (inclusive) and 'to' (exclusive) such
+     * that position k holds the item that would be there if the range was
+     * sorted, with all smaller items before it and all bigger items after it.
+     */
+    private void select(int from, int to, int k) {
+        int depth = depthLimit(to - from);
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            if (depth-- == 0) {
+                this.heapSort(from, to);
+                return;
+            }
+
+            int p = this.partition(from, to);
+            if (k < p) {
+                to = p;
+            } else if (k > p) {
+                from = p + 1;
+            } else {
+                return;
+            }
+        }
+        this.insertionSort(from, to);
+    }
+
+    /** Introsort of the items between 'from' (inclusive) and 'to' (exclusive) */
+    private void sort(int from, int to, int depth) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            if (depth-- == 0) {
+                this.heapSort(from, to);
+                return;
+            }
+
+            int p = this.partition(from, to);
+            // recurse into the smaller part to bound the stack depth
+            if (p - from < to - p) {
+                this.sort(from, p, depth);
+                from = p + 1;
+            } else {
+                this.sort(p + 1, to, depth);
+                to = p;
+            }
+        }
+        this.insertionSort(from, to);
+    }
+
+    /**
+     * Partitions the range around a median-of-three pivot and returns the final
+     * position of the pivot. There are no equal items because of the arrival
+     * order, so a simple Lomuto scheme is sufficient.
+     */
+    private int partition(int from, int to) {
+        int last = to - 1;
+        int mid = (from + last) >>> 1;
+        if (this.lessThan(mid, from)) {
+            this.swap(mid, from);
+        }
+        if (this.lessThan(last, from)) {
+            this.swap(last, from);
+        }
+        if (this.lessThan(mid, last)) {
+            this.swap(mid, last);
+        }
+
+        int store = from;
+        for (int i = from; i < last; i++) {
+            if (this.lessThan(i, last)) {
+                this.swap(i, store++);
+            }
+        }
+        this.swap(store, last);
+        return store;
+    }
+
+    private void insertionSort(int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && this.lessThan(j, j - 1); j--) {
+                this.swap(j, j - 1);
+            }
+        }
+    }
+
+    private void heapSort(int from, int to) {
+        int n = to - from;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            this.siftDown(from, i, n);
+        }
+        for (int i = n - 1; i > 0; i--) {
+            this.swap(from, from + i);
+            this.siftDown(from, 0, i);
+        }
+    }
+
+    private void siftDown(int base, int i, int n) {
+        do {
+            int l = 2 * i + 1;
+            if (l >= n) {
+                break;
+            }
+
+            int bigger = l;
+            if (l + 1 < n && this.lessThan(base + l, base + l + 1)) {
+                bigger = l + 1;
+            }
+            if (!this.lessThan(base + i, base + bigger)) {
+                break;
+            }
+
+            this.swap(base + i, base + bigger);
+            i = bigger;
+        } while (true);
+    }
+}
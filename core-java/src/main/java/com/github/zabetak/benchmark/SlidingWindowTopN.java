@@ -0,0 +1,257 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * A stable top-N with a fetch and an offset over the last 'windowSize' items
+ * that were offered. Once the window is full, offering an item expires the
+ * oldest one, so the result can be taken at any time without rebuilding it
+ * from the items of the window.
+ * <p>
+ * The items of the window are split into two heaps. The max-heap holds the
+ * fetch + offset smallest items, like {@link TopNHeap}, and the min-heap holds
+ * all other items, whose smallest one moves up when an item of the max-heap
+ * expires. Like in TopNHeap, equal items are ordered by their arrival, which
+ * also tells the position of an item in the window. A ring buffer maps every
+ * position to the index of the item in its heap, so the oldest item is removed
+ * in O(log windowSize).
+ * </p>
+ *
+ * @param <TSource> type of the element that will be added to the heap
+ * @param <TKey> type of the key, which the comparator will use for comparisons
+ */
+public class SlidingWindowTopN<TSource, TKey> {
+    static final int ROOT = 1;
+
+    private final Function<TSource, TKey> keyFn;
+    private final Comparator<TKey> cmp;
+    private final int fetch;
+    private final int offset;
+    private final int maxSize;
+    private final int windowSize;
+
+    /** The order of arrival of the next item */
+    long time = 0;
+    /** The order of arrival of the oldest item in the window */
+    long oldest = 0;
+
+    /** The fetch + offset smallest items of the window, the biggest at the root */
+    final Heap top;
+    /** The other items of the window, the smallest at the root */
+    final Heap rest;
+    /**
+     * The index of the item with order t is at position t % windowSize, positive
+     * if it is in the max-heap, negative if it is in the min-heap.
+     */
+    final int[] positions;
+
+    public SlidingWindowTopN(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int windowSize,
+            int fetch, int offset) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("window size (" + windowSize + ") must be positive");
+        }
+        this.keyFn = keySelector;
+        this.cmp = comparator;
+        this.fetch = fetch;
+        this.offset = offset;
+        this.windowSize = windowSize;
+        long tmp = (long) fetch + offset;
+        this.maxSize = (int) Math.min(tmp, windowSize);
+        this.top = new Heap(this.maxSize, 1);
+        this.rest = new Heap(windowSize - this.maxSize, -1);
+        this.positions = new int[windowSize];
+    }
+
+    /** Offers a new item, and expires the oldest one if the window is full */
+    public void offer(TSource o) {
+        if (this.time - this.oldest == this.windowSize) {
+            this.expire();
+        }
+        long t = this.time++;
+        if (this.top.size < this.maxSize) {
+            this.top.add(o, t);
+        } else if (this.maxSize > 0 && this.top.compare(o, t, ROOT) < 0) {
+            // the biggest of the top items is now the smallest of the others
+            this.rest.add(this.top.heap[ROOT], this.top.order[ROOT]);
+            this.top.replaceRoot(o, t);
+        } else {
+            this.rest.add(o, t);
+        }
+    }
+
+    /** Removes the oldest item from the window, if it is not empty */
+    public void expire() {
+        if (this.oldest == this.time) {
+            return;
+        }
+        int pos = this.positions[this.slot(this.oldest++)];
+        if (pos < 0) {
+            this.rest.removeAt(-pos);
+            return;
+        }
+        this.top.removeAt(pos);
+        if (this.rest.size > 0) {
+            this.top.add(this.rest.heap[ROOT], this.rest.order[ROOT]);
+            this.rest.removeAt(ROOT);
+        }
+    }
+
+    /** Returns the number of items in the window */
+    public int size() {
+        return (int) (this.time - this.oldest);
+    }
+
+    /**
+     * Returns an array with at most 'fetch' entries, that contains the sorted
+     * entries of the items in the window, while skipping the first 'offset'
+     * elements. The window is not modified.
+     */
+    public Object[] getResult() {
+        int len = Math.max(0, Math.min(this.top.size - this.offset, this.fetch));
+        Object[] result = new Object[len];
+        if (len == 0) {
+            return result;
+        }
+        // sorts a copy of the max-heap, by polling its root
+        Heap copy = new Heap(this.top);
+        for (int i = copy.size; i > this.offset; i--) {
+            if (i - this.offset <= len) {
+                result[i - this.offset - 1] = copy.heap[ROOT];
+            }
+            copy.removeAt(ROOT);
+        }
+        return result;
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    private int slot(long t) {
+        return (int) (t % this.windowSize);
+    }
+
+    /**
+     * A binary heap with 1-based index, which orders the items by their key and
+     * their order of arrival. It is a max-heap if 'sign' is 1 and a min-heap if
+     * it is -1. Every move of an item is recorded in 'positions', unless the
+     * heap is a copy.
+     */
+    final class Heap {
+        final int sign;
+        final boolean tracked;
+        Object[] heap;
+        long[] order;
+        int size = 0;
+
+        Heap(int capacity, int sign) {
+            this.sign = sign;
+            this.tracked = true;
+            this.heap = new Object[capacity + ROOT];
+            this.order = new long[capacity + ROOT];
+        }
+
+        Heap(Heap other) {
+            this.sign = other.sign;
+            this.tracked = false;
+            this.heap = other.heap.clone();
+            this.order = other.order.clone();
+            this.size = other.size;
+        }
+
+        void add(Object o, long t) {
+            this.size++;
+            this.shiftUp(this.size, o, t);
+        }
+
+        void replaceRoot(Object o, long t) {
+            this.shiftDown(ROOT, o, t);
+        }
+
+        /** Removes the item at index i, by moving the last item there */
+        void removeAt(int i) {
+            Object last = this.heap[this.size];
+            long lastTime = this.order[this.size];
+            this.heap[this.size] = null;
+            this.size--;
+            if (i > this.size) {
+                return;
+            }
+            // the last item may belong above or below the removed one
+            if (i > ROOT && this.compare(last, lastTime, i >>> 1) > 0) {
+                this.shiftUp(i, last, lastTime);
+            } else {
+                this.shiftDown(i, last, lastTime);
+            }
+        }
+
+        /**
+         * Compares an item with the one at index i, such that the item with the
+         * bigger result is closer to the root.
+         */
+        @SuppressWarnings("unchecked")
+        int compare(Object o, long t, int i) {
+            int c = SlidingWindowTopN.this.cmp.compare(SlidingWindowTopN.this.keyFn.apply((TSource) o),
+                    SlidingWindowTopN.this.keyFn.apply((TSource) this.heap[i]));
+            if (c == 0) {
+                c = Long.compare(t, this.order[i]);
+            }
+            return this.sign * c;
+        }
+
+        private void shiftUp(int i, Object o, long t) {
+            int j = i;
+            while (j > ROOT) {
+                int p = j >>> 1;
+                if (this.compare(o, t, p) <= 0) {
+                    break;
+                }
+                this.assign(j, this.heap[p], this.order[p]);
+                j = p;
+            }
+            this.assign(j, o, t);
+        }
+
+        private void shiftDown(int i, Object o, long t) {
+            int j = i;
+            int l;
+            while ((l = j << 1) <= this.size) {
+                int child = l;
+                if (l + 1 <= this.size && this.compare(this.heap[l + 1], this.order[l + 1], l) > 0) {
+                    child = l + 1;
+                }
+                if (this.compare(o, t, child) >= 0) {
+                    break;
+                }
+                this.assign(j, this.heap[child], this.order[child]);
+                j = child;
+            }
+            this.assign(j, o, t);
+        }
+
+        private void assign(int i, Object o, long t) {
+            this.heap[i] = o;
+            this.order[i] = t;
+            if (this.tracked) {
+                SlidingWindowTopN.this.positions[SlidingWindowTopN.this.slot(t)] = this.sign * i;
+            }
+        }
+    }
+}
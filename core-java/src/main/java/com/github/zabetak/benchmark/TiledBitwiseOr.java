@@ -0,0 +1,153 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Computes the union of many bitsets, stored as long words, one tile of words
+ * at a time. All bitsets are ORed into a tile of the result before the next
+ * tile, so the tile stays in the cache, while the bitsets are read only once.
+ * <p>
+ * The tile is sized after a cache level: half of the cache holds the tile of
+ * the result, and the other half the words of the bitsets that stream through.
+ * The cache sizes are read from /sys/devices/system/cpu/cpu0/cache on Linux, and
+ * can be set with the system property "bitwise.or.cache.L&lt;level&gt;", e.g.
+ * -Dbitwise.or.cache.L1=48K, or fall back to typical sizes.
+ * </p>
+ */
+public class TiledBitwiseOr {
+    static final String CACHE_PROPERTY = "bitwise.or.cache.L";
+    static final long[] DEFAULT_CACHE_SIZES = {32 << 10, 256 << 10, 8 << 20};
+
+    private final int tileWords;
+
+    public TiledBitwiseOr(int tileWords) {
+        if (tileWords <= 0) {
+            throw new IllegalArgumentException("tile words (" + tileWords + ") must be positive");
+        }
+        this.tileWords = tileWords;
+    }
+
+    /** Returns a union whose tiles fit into the given cache level, from 1 to 3 */
+    public static TiledBitwiseOr forCacheLevel(int level) {
+        return forCacheSize(cacheSize(level));
+    }
+
+    public static TiledBitwiseOr forCacheSize(long cacheBytes) {
+        return new TiledBitwiseOr((int) Math.max(1, Math.min(Integer.MAX_VALUE, cacheBytes / 2 / Long.BYTES)));
+    }
+
+    public int tileWords() {
+        return this.tileWords;
+    }
+
+    /** Returns the union of the bitsets, which have at least 'words' words each */
+    public long[] or(long[][] bitsets, int words) {
+        long[] result = new long[words];
+        this.orInto(result, bitsets, 0, words);
+        return result;
+    }
+
+    /** ORs the words from 'from' to 'to' - 1 of the bitsets into the result */
+    public void orInto(long[] result, long[][] bitsets, int from, int to) {
+        for (int tile = from; tile < to; tile += this.tileWords) {
+            int end = (int) Math.min(to, (long) tile + this.tileWords);
+            for (long[] bitset : bitsets) {
+                for (int j = tile; j < end; j++) {
+                    result[j] |= bitset[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #orInto(long[], long[][], int, int)}, but on buffers, e.g.
+     * views of files that are mapped into memory, which may not fit into the heap.
+     */
+    public void orInto(LongBuffer result, LongBuffer[] bitsets, int from, int to) {
+        for (int tile = from; tile < to; tile += this.tileWords) {
+            int end = (int) Math.min(to, (long) tile + this.tileWords);
+            for (LongBuffer bitset : bitsets) {
+                for (int j = tile; j < end; j++) {
+                    result.put(j, result.get(j) | bitset.get(j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the data cache of the given level, see the
+     * description of the class.
+     */
+    static long cacheSize(int level) {
+        if (level < 1 || level > DEFAULT_CACHE_SIZES.length) {
+            throw new IllegalArgumentException("cache level (" + level + ") must be between 1 and "
+                    + DEFAULT_CACHE_SIZES.length);
+        }
+        String property = System.getProperty(CACHE_PROPERTY + level);
+        if (property != null) {
+            return parseSize(property);
+        }
+        try {
+            for (int index = 0; ; index++) {
+                Path dir = Paths.get("/sys/devices/system/cpu/cpu0/cache/index" + index);
+                if (!Files.isDirectory(dir)) {
+                    break;
+                }
+                if (Integer.parseInt(read(dir.resolve("level"))) == level
+                        && !"Instruction".equals(read(dir.resolve("type")))) {
+                    return parseSize(read(dir.resolve("size")));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux or an unexpected format, use the default
+        }
+        return DEFAULT_CACHE_SIZES[level - 1];
+    }
+
+    /** Parses a number of bytes with an optional K, M or G suffix, e.g. 48K */
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        int shift = 0;
+        switch (s.isEmpty() ? ' ' : s.charAt(s.length() - 1)) {
+            case 'K':
+                shift = 10;
+                break;
+            case 'M':
+                shift = 20;
+                break;
+            case 'G':
+                shift = 30;
+                break;
+        }
+        if (shift > 0) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) << shift;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+    }
+}
@@ -17,13 +17,22 @@ package com.github.zabetak.benchmark;
  * limitations under the License.
  */
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * Implementation of a stable binary heap with a fetch and an offset. Stable
  * means that if two items are considered equal, they will appear in the same
  * order as they were offered to the heap.
+ * <p>
+ * By default the key of an element is extracted from the element whenever it
+ * is needed. If the heap is created with 'cacheKeys', the key is extracted once
+ * when the element is offered and kept in an array next to the heap.
+ * </p>
  *
  * @param <TSource> type of the element that will be added to the heap
  * @param <TKey> type of the key, which the comparator will use for comparisons
@@ -46,8 +55,22 @@ public class TopNHeap<TSource, TKey> {
     TSource[] heap;
     /** Stores the order of arrival of the elements in the heap */
     int[] order;
+    /** Stores the keys of the elements in the heap, null if keys are not cached */
+    TKey[] keys;
+
+    /** Buffers for the items of a batch that beat the head, see offerAll */
+    int[] survivorIdx = new int[0];
+    TKey[] survivorKeys;
+
+    /** Notified whenever the threshold changes, null if there is no listener */
+    private Consumer<? super TKey> thresholdListener;
 
     public TopNHeap(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int fetch, int offset) {
+        this(keySelector, comparator, fetch, offset, false);
+    }
+
+    public TopNHeap(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int fetch, int offset,
+            boolean cacheKeys) {
         this.keyFn = keySelector;
         this.cmp = comparator;
         long tmp = (long) fetch + offset;
@@ -63,14 +86,20 @@ public class TopNHeap<TSource, TKey> {
         TSource[] t = (TSource[]) new Object[arrayLen];
         this.heap = t;
         this.order = new int[arrayLen];
+        if (cacheKeys) {
+            @SuppressWarnings("unchecked")
+            TKey[] k = (TKey[]) new Object[arrayLen];
+            this.keys = k;
+        }
         this.fetch = fetch;
         this.offset = offset;
     }
 
     /**
-     * Offers a new item to the heap.
+     * Offers a new item to the heap. Returns false if it was rejected, because it
+     * is not smaller than the head.
      */
-    public void offer(TSource o) {
+    public boolean offer(TSource o) {
         // if size < maxSize
         if (this.size < this.maxSize) {
             this.size++;
@@ -79,17 +108,90 @@ public class TopNHeap<TSource, TKey> {
             }
 
             this.shiftUp(this.size, o, this.time++);
-            return;
+            if (this.size == this.maxSize) {
+                this.thresholdChanged();
+            }
+            return true;
         }
 
         // check head
         TKey elKey = this.keyFn.apply(o);
         int c = this.cmp.compare(elKey, this.headKey);
         if (c >= 0) {
-            return;
+            return false;
         }
 
         this.shiftDown(ROOT, o, this.time++, elKey);
+        this.thresholdChanged();
+        return true;
+    }
+
+    /** Returns true once fetch + offset items were offered, and later ones may be rejected */
+    public boolean isFull() {
+        return this.size >= this.maxSize;
+    }
+
+    /**
+     * Returns the key that a new item has to be smaller than to be kept, or null
+     * as long as the heap is not full. Once the heap is full, the threshold never
+     * increases, so a producer can skip every item whose key is not smaller
+     * without offering it.
+     */
+    public TKey currentThreshold() {
+        return this.size < this.maxSize ? null : this.headKey;
+    }
+
+    /**
+     * Sets a listener that is called with the new threshold whenever it changes,
+     * see {@link #currentThreshold()}.
+     */
+    public void setThresholdListener(Consumer<? super TKey> listener) {
+        this.thresholdListener = listener;
+    }
+
+    /**
+     * Offers the items batch[from] to batch[to - 1] to the heap. Once the heap is
+     * full, all remaining items of the batch are compared against the current
+     * head first, and only the items that beat it are inserted afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    public void offerAll(Object[] batch, int from, int to) {
+        int i = from;
+        while (i < to && this.size < this.maxSize) {
+            this.offer((TSource) batch[i++]);
+        }
+        if (i >= to) {
+            return;
+        }
+
+        if (this.survivorIdx.length < to - i) {
+            this.survivorIdx = new int[to - i];
+            this.survivorKeys = (TKey[]) new Object[to - i];
+        }
+
+        // the head can only get smaller while inserting, so everything that does
+        // not beat the current head can be rejected right away
+        TKey threshold = this.headKey;
+        int n = 0;
+        for (; i < to; i++) {
+            TKey elKey = this.keyFn.apply((TSource) batch[i]);
+            this.survivorIdx[n] = i;
+            this.survivorKeys[n] = elKey;
+            n += this.cmp.compare(elKey, threshold) < 0 ? 1 : 0;
+        }
+
+        for (int s = 0; s < n; s++) {
+            TKey elKey = this.survivorKeys[s];
+            if (this.cmp.compare(elKey, this.headKey) < 0) {
+                this.shiftDown(ROOT, (TSource) batch[this.survivorIdx[s]], this.time++, elKey);
+                this.thresholdChanged();
+            }
+            this.survivorKeys[s] = null;
+        }
+        // the slot after the last survivor may still hold a rejected key
+        if (n < this.survivorKeys.length) {
+            this.survivorKeys[n] = null;
+        }
     }
 
     /**
@@ -108,9 +210,50 @@ public class TopNHeap<TSource, TKey> {
         return result;
     }
 
+    /**
+     * Returns the same items as {@link #getResult()}, but without copying them
+     * into a new array. The heap is turned into a min-heap in place, in O(n), and
+     * the iterator polls the next item from it. Thus the first item is available
+     * before the whole result is sorted. The heap cannot be used anymore
+     * afterwards.
+     */
+    public Iterator<TSource> iterator() {
+        for (int i = this.size >>> 1; i >= ROOT; i--) {
+            this.minShiftDown(i);
+        }
+        int len = Math.max(0, Math.min(this.size - this.offset, this.fetch));
+        for (int i = 0; i < this.offset && this.size > 0; i++) {
+            this.pollMin();
+        }
+
+        return new Iterator<TSource>() {
+            int remaining = len;
+
+            @Override
+            public boolean hasNext() {
+                return this.remaining > 0;
+            }
+
+            @Override
+            public TSource next() {
+                if (this.remaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                this.remaining--;
+                return TopNHeap.this.pollMin();
+            }
+        };
+    }
+
     // --------------------------------------------------------------------------------
     // --------------------------------------------------------------------------------
 
+    private void thresholdChanged() {
+        if (this.thresholdListener != null) {
+            this.thresholdListener.accept(this.headKey);
+        }
+    }
+
     private void growSize() {
         int newLen = (int) Math.min(this.maxSize, this.heap.length * 2L) + ROOT;
         if (newLen * 2 > this.maxSize) {
@@ -124,6 +267,9 @@ public class TopNHeap<TSource, TKey> {
         System.arraycopy(this.order, 0, newOrder, 0, this.order.length);
         this.heap = newHeap;
         this.order = newOrder;
+        if (this.keys != null) {
+            this.keys = Arrays.copyOf(this.keys, newLen);
+        }
     }
 
     private TSource poll() {
@@ -133,16 +279,60 @@ public class TopNHeap<TSource, TKey> {
 
         TSource result = this.heap[ROOT];
         if (this.size > 1) {
-            this.shiftDown(ROOT, this.heap[this.size], this.order[this.size], null);
+            this.shiftDown(ROOT, this.heap[this.size], this.order[this.size], this.key(this.size));
+        }
+        this.assign(this.size, null, null, -1);
+        this.size--;
+        return result;
+    }
+
+    private TSource pollMin() {
+        TSource result = this.heap[ROOT];
+        if (this.size > 1) {
+            this.assign(ROOT, this.size);
         }
-        this.assign(this.size, null, -1);
+        this.assign(this.size, null, null, -1);
         this.size--;
+        this.minShiftDown(ROOT);
         return result;
     }
 
+    /** Moves the item at index i down, as if the heap was a min-heap */
+    private void minShiftDown(int i) {
+        if (i > this.size) {
+            return;
+        }
+        TSource toMove = this.heap[i];
+        TKey toMoveKey = this.key(i);
+        int time = this.order[i];
+
+        int j = i;
+        do {
+            int l = j << 1;
+            if (l > this.size) {
+                break;
+            }
+
+            int r = l + 1;
+            int smaller = l;
+            if (r <= this.size && this.compare(r, l) < 0) {
+                smaller = r;
+            }
+
+            int c = this.cmp.compare(this.key(smaller), toMoveKey);
+            if (c > 0 || (c == 0 && this.order[smaller] > time)) {
+                break;
+            }
+
+            this.assign(j, smaller);
+            j = smaller;
+        } while (true);
+        this.assign(j, toMove, toMoveKey, time);
+    }
+
     private int compare(int a, int b) {
-        TKey aKey = this.keyFn.apply(this.heap[a]);
-        TKey bKey = this.keyFn.apply(this.heap[b]);
+        TKey aKey = this.key(a);
+        TKey bKey = this.key(b);
 
         int c = this.cmp.compare(aKey, bKey);
         if (c == 0) {
@@ -164,31 +354,44 @@ public class TopNHeap<TSource, TKey> {
         return i << 1;
     }
 
+    private TKey key(int i) {
+        return this.keys == null ? this.keyFn.apply(this.heap[i]) : this.keys[i];
+    }
+
     private void assign(int dst, int src) {
-        this.assign(dst, this.heap[src], this.order[src]);
+        this.heap[dst] = this.heap[src];
+        this.order[dst] = this.order[src];
+        if (this.keys != null) {
+            this.keys[dst] = this.keys[src];
+        }
+        if (dst == ROOT) {
+            this.headKey = this.heap[ROOT] == null ? null : this.key(ROOT);
+        }
     }
 
-    private void assign(int dst, TSource o, int time) {
+    private void assign(int dst, TSource o, TKey key, int time) {
         if (dst == ROOT) {
-            this.headKey = o == null ? null : this.keyFn.apply(o);
+            this.headKey = key;
         }
         this.heap[dst] = o;
         this.order[dst] = time;
+        if (this.keys != null) {
+            this.keys[dst] = key;
+        }
     }
 
     private void shiftUp(int i, TSource toMove, int time) {
+        TKey movedKey = this.keyFn.apply(toMove);
         if (i == ROOT) {
-            this.assign(ROOT, toMove, time);
+            this.assign(ROOT, toMove, movedKey, time);
             return;
         }
 
-        TKey movedKey = this.keyFn.apply(toMove);
-
         int j = i;
         do {
             int p = this.parent(j);
 
-            TKey parentKey = this.keyFn.apply(this.heap[p]);
+            TKey parentKey = this.key(p);
 
             int c = this.cmp.compare(movedKey, parentKey);
             if (c < 0 || (c == 0 && time < this.order[p])) {
@@ -199,7 +402,7 @@ public class TopNHeap<TSource, TKey> {
 
             j = p;
         } while (j > ROOT);
-        this.assign(j, toMove, time);
+        this.assign(j, toMove, movedKey, time);
     }
 
     private void shiftDown(int i, TSource toMove, int time, TKey toMoveKey) {
@@ -220,7 +423,7 @@ public class TopNHeap<TSource, TKey> {
                 smaller = r;
             }
 
-            TKey smallerKey = this.keyFn.apply(this.heap[smaller]);
+            TKey smallerKey = this.key(smaller);
             int c = this.cmp.compare(toMoveKey, smallerKey);
 
             if (c > 0 || (c == 0 && time > this.order[smaller])) {
@@ -230,7 +433,7 @@ public class TopNHeap<TSource, TKey> {
             this.assign(j, smaller);
             j = smaller;
         } while (true);
-        this.assign(j, toMove, time);
+        this.assign(j, toMove, toMoveKey, time);
     }
 
 }
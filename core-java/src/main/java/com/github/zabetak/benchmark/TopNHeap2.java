@@ -17,6 +17,7 @@ package com.github.zabetak.benchmark;
  * limitations under the License.
  */
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.function.Function;
 
@@ -24,6 +25,11 @@ import java.util.function.Function;
  * Implementation of a stable binary heap with a fetch and an offset. Stable
  * means that if two items are considered equal, they will appear in the same
  * order as they were offered to the heap.
+ * <p>
+ * By default the key of an element is extracted from the element whenever it
+ * is needed. If the heap is created with 'cacheKeys', the key is extracted once
+ * when the element is offered and kept in an array next to the heap.
+ * </p>
  *
  * @param <TSource> type of the element that will be added to the heap
  * @param <TKey> type of the key, which the comparator will use for comparisons
@@ -46,6 +52,12 @@ public class TopNHeap2<TSource, TKey> {
     TSource[] heap;
     /** Stores the order of arrival of the elements in the heap */
     int[] order;
+    /** Stores the keys of the elements in the heap, null if keys are not cached */
+    TKey[] keys;
+
+    /** Buffers for the items of a batch that beat the head, see offerAll */
+    int[] survivorIdx = new int[0];
+    TKey[] survivorKeys;
     byte[] smallerChild;
 
     final byte LEFT_IS_SMALLER = 1;
@@ -53,6 +65,11 @@ public class TopNHeap2<TSource, TKey> {
     final byte UNKNOWN = 0;
 
     public TopNHeap2(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int fetch, int offset) {
+        this(keySelector, comparator, fetch, offset, false);
+    }
+
+    public TopNHeap2(Function<TSource, TKey> keySelector, Comparator<TKey> comparator, int fetch, int offset,
+            boolean cacheKeys) {
         this.keyFn = keySelector;
         this.cmp = comparator;
         long tmp = (long) fetch + offset;
@@ -68,6 +85,11 @@ public class TopNHeap2<TSource, TKey> {
         TSource[] t = (TSource[]) new Object[arrayLen];
         this.heap = t;
         this.order = new int[arrayLen];
+        if (cacheKeys) {
+            @SuppressWarnings("unchecked")
+            TKey[] k = (TKey[]) new Object[arrayLen];
+            this.keys = k;
+        }
         this.smallerChild = new byte[arrayLen];
         this.fetch = fetch;
         this.offset = offset;
@@ -98,6 +120,50 @@ public class TopNHeap2<TSource, TKey> {
         this.shiftDown(ROOT, o, this.time++, elKey);
     }
 
+    /**
+     * Offers the items batch[from] to batch[to - 1] to the heap. Once the heap is
+     * full, all remaining items of the batch are compared against the current
+     * head first, and only the items that beat it are inserted afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    public void offerAll(Object[] batch, int from, int to) {
+        int i = from;
+        while (i < to && this.size < this.maxSize) {
+            this.offer((TSource) batch[i++]);
+        }
+        if (i >= to) {
+            return;
+        }
+
+        if (this.survivorIdx.length < to - i) {
+            this.survivorIdx = new int[to - i];
+            this.survivorKeys = (TKey[]) new Object[to - i];
+        }
+
+        // the head can only get smaller while inserting, so everything that does
+        // not beat the current head can be rejected right away
+        TKey threshold = this.headKey;
+        int n = 0;
+        for (; i < to; i++) {
+            TKey elKey = this.keyFn.apply((TSource) batch[i]);
+            this.survivorIdx[n] = i;
+            this.survivorKeys[n] = elKey;
+            n += this.cmp.compare(elKey, threshold) < 0 ? 1 : 0;
+        }
+
+        for (int s = 0; s < n; s++) {
+            TKey elKey = this.survivorKeys[s];
+            if (this.cmp.compare(elKey, this.headKey) < 0) {
+                this.shiftDown(ROOT, (TSource) batch[this.survivorIdx[s]], this.time++, elKey);
+            }
+            this.survivorKeys[s] = null;
+        }
+        // the slot after the last survivor may still hold a rejected key
+        if (n < this.survivorKeys.length) {
+            this.survivorKeys[n] = null;
+        }
+    }
+
     public void debug() {
         System.out.println("\nHEAP:");
         for (int i = 0; i < heap.length; i++) {
@@ -139,6 +205,9 @@ public class TopNHeap2<TSource, TKey> {
         System.arraycopy(this.smallerChild, 0, newSmaller, 0, this.smallerChild.length);
         this.heap = newHeap;
         this.order = newOrder;
+        if (this.keys != null) {
+            this.keys = Arrays.copyOf(this.keys, newLen);
+        }
         this.smallerChild = newSmaller;
     }
 
@@ -158,8 +227,8 @@ public class TopNHeap2<TSource, TKey> {
     }
 
     private int compare(int a, int b) {
-        TKey aKey = this.keyFn.apply(this.heap[a]);
-        TKey bKey = this.keyFn.apply(this.heap[b]);
+        TKey aKey = this.key(a);
+        TKey bKey = this.key(b);
 
         int c = this.cmp.compare(aKey, bKey);
         if (c == 0) {
@@ -173,31 +242,48 @@ public class TopNHeap2<TSource, TKey> {
         return this.compare(a, b) > 0;
     }
 
+    private TKey key(int i) {
+        if (this.keys != null) {
+            return this.keys[i];
+        }
+        // poll() leaves holes in the heap
+        return this.heap[i] == null ? null : this.keyFn.apply(this.heap[i]);
+    }
+
     private void assign(int dst, int src) {
-        this.assign(dst, this.heap[src], this.order[src]);
+        this.heap[dst] = this.heap[src];
+        this.order[dst] = this.order[src];
+        if (this.keys != null) {
+            this.keys[dst] = this.keys[src];
+        }
+        if (dst == ROOT) {
+            this.headKey = this.key(ROOT);
+        }
     }
 
-    private void assign(int dst, TSource o, int time) {
+    private void assign(int dst, TSource o, TKey key, int time) {
         if (dst == ROOT) {
-            this.headKey = o == null ? null : this.keyFn.apply(o);
+            this.headKey = key;
         }
         this.heap[dst] = o;
         this.order[dst] = time;
+        if (this.keys != null) {
+            this.keys[dst] = key;
+        }
     }
 
     private void shiftUp(int i, TSource toMove, int time) {
+        TKey movedKey = this.keyFn.apply(toMove);
         if (i == ROOT) {
-            this.assign(ROOT, toMove, time);
+            this.assign(ROOT, toMove, movedKey, time);
             return;
         }
 
-        TKey movedKey = this.keyFn.apply(toMove);
-
         int j = i;
         do {
             int parent = j >>> 1;
 
-            TKey parentKey = this.keyFn.apply(this.heap[parent]);
+            TKey parentKey = this.key(parent);
 
             int c = this.cmp.compare(movedKey, parentKey);
             if (c < 0 || (c == 0 && time < this.order[parent])) {
@@ -209,7 +295,7 @@ public class TopNHeap2<TSource, TKey> {
 
             j = parent;
         } while (j > ROOT);
-        this.assign(j, toMove, time);
+        this.assign(j, toMove, movedKey, time);
         this.smallerChild[j >>> 1] = UNKNOWN;
     }
 
@@ -246,7 +332,7 @@ public class TopNHeap2<TSource, TKey> {
             } else
                 smallerIdx = smaller == LEFT_IS_SMALLER ? leftChild : rightChild;
 
-            TKey smallerKey = this.keyFn.apply(this.heap[smallerIdx]);
+            TKey smallerKey = this.key(smallerIdx);
             int c = toMoveKey == null ? -1 : this.cmp.compare(toMoveKey, smallerKey);
 
             if (c > 0 || (c == 0 && time > this.order[smallerIdx])) {
@@ -259,7 +345,7 @@ public class TopNHeap2<TSource, TKey> {
             this.smallerChild[j] = UNKNOWN;
             j = smallerIdx;
         } while (true);
-        this.assign(j, toMove, time);
+        this.assign(j, toMove, toMoveKey, time);
     }
 
 }
@@ -0,0 +1,194 @@
+package com.github.zabetak.benchmark;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Facade that picks a top-N implementation, based on the results of
+ * {@link PartialSortBenchmark}:
+ * <ul>
+ * <li>{@link Strategy#SORT} if there is no limit or if the input is not known
+ * to be bigger than limit + offset: collect everything and sort once at the
+ * end,</li>
+ * <li>{@link Strategy#HEAP} otherwise, whatever the limit: {@link TopNHeap},</li>
+ * <li>{@link Strategy#LIMIT_SORT} only after a switch: {@link LimitSort}.</li>
+ * </ul>
+ * <p>
+ * The choice is revised while items are offered. If SORT was chosen but the
+ * input turns out to be much bigger than limit + offset, it switches to HEAP.
+ * If HEAP, once it holds limit + offset items, accepts most of the items of a
+ * sample, e.g. because the input is sorted in descending order, it switches to
+ * LIMIT_SORT, which collects the accepted items and inserts them in batches
+ * instead of sifting every one of them through the heap. A heap that has seen m
+ * items accepts the next one with probability (limit + offset) / m if the input
+ * is in random order, so the sample also has to beat that by a margin. When
+ * switching, the items kept so far are replayed in sorted order, which keeps
+ * the result stable.
+ * </p>
+ * <p>
+ * On inputs that are rejected mostly, HEAP and LIMIT_SORT are within about 10%
+ * of each other for limits from 100 to 100000, without a clear winner. On
+ * inputs that are accepted mostly, LIMIT_SORT is 2 to 4 times faster for all of
+ * these limits. Hence the limit does not decide the strategy, the acceptance
+ * rate does.
+ * </p>
+ *
+ * @param <E> type of the items
+ */
+public class TopNSorter<E> {
+    /** Number of offered items after which the acceptance rate is checked */
+    static final int SAMPLE_SIZE = 1024;
+    /** The heap switches to LimitSort, if it accepts more items of a sample */
+    static final double MAX_HEAP_ACCEPT_RATE = 0.5;
+    /** ... and this many times the items it would accept from an input in random order */
+    static final int MIN_ACCEPT_OVER_RANDOM = 2;
+
+    enum Strategy {
+        SORT, HEAP, LIMIT_SORT
+    }
+
+    private final Comparator<E> cmp;
+    private final int fetch;
+    private final int offset;
+    /** Number of items that need to be kept, i.e. fetch + offset */
+    private final int keep;
+
+    private Strategy strategy;
+    private List<E> list;
+    private TopNHeap<E, E> heap;
+    private LimitSort<E> limitSort;
+
+    /** Number of items offered so far */
+    private long offered = 0;
+    private int sampled = 0;
+    private int accepted = 0;
+
+    /**
+     * @param limit maximum number of items in the result, or -1 for all
+     * @param expectedSize expected number of items, or -1 if unknown
+     */
+    public TopNSorter(Comparator<E> comparator, int limit, int offset, int expectedSize) {
+        this.cmp = comparator;
+        this.fetch = limit < 0 ? Integer.MAX_VALUE : limit;
+        this.offset = offset;
+        this.keep = (int) Math.min((long) this.fetch + offset, Integer.MAX_VALUE);
+
+        if (limit < 0 || expectedSize < 0 || expectedSize <= this.keep) {
+            this.strategy = Strategy.SORT;
+            this.list = new ArrayList<>(Math.max(0, expectedSize));
+        } else {
+            this.switchTo(Strategy.HEAP, Collections.emptyList());
+        }
+    }
+
+    Strategy getStrategy() {
+        return this.strategy;
+    }
+
+    /**
+     * Offers a new item.
+     */
+    public void offer(E e) {
+        if (this.keep == 0) {
+            return;
+        }
+        this.offered++;
+        switch (this.strategy) {
+            case SORT:
+                this.list.add(e);
+                if (this.keep < Integer.MAX_VALUE && this.list.size() > 2L * this.keep) {
+                    // the input is bigger than expected, the list is still in arrival order
+                    List<E> items = this.list;
+                    this.list = null;
+                    this.switchTo(Strategy.HEAP, items);
+                }
+                break;
+            case HEAP:
+                // the heap accepts every item until it is full, which tells nothing about the input
+                boolean full = this.heap.isFull();
+                if (this.heap.offer(e) && full) {
+                    this.accepted++;
+                }
+                if (full && ++this.sampled == SAMPLE_SIZE) {
+                    if (this.accepted > SAMPLE_SIZE * MAX_HEAP_ACCEPT_RATE
+                            && this.accepted * this.offered > (long) MIN_ACCEPT_OVER_RANDOM * this.keep * SAMPLE_SIZE) {
+                        // the heap keeps the offset, see switchTo
+                        @SuppressWarnings("unchecked")
+                        List<E> kept = (List<E>) Arrays.asList(this.heap.getResult());
+                        this.switchTo(Strategy.LIMIT_SORT, kept);
+                    }
+                    this.sampled = 0;
+                    this.accepted = 0;
+                }
+                break;
+            case LIMIT_SORT:
+                this.limitSort.offer(e);
+                break;
+        }
+    }
+
+    /**
+     * Returns at most 'limit' sorted items, while skipping the first 'offset'.
+     */
+    public Iterable<E> getResult() {
+        switch (this.strategy) {
+            case SORT:
+                this.list.sort(this.cmp);
+                int from = Math.min(this.offset, this.list.size());
+                int to = (int) Math.min((long) from + this.fetch, this.list.size());
+                return this.list.subList(from, to);
+            case HEAP:
+                @SuppressWarnings("unchecked")
+                List<E> result = (List<E>) Arrays.asList(this.heap.getResult());
+                return result.subList(Math.min(this.offset, result.size()), result.size());
+            default:
+                List<E> kept = this.limitSort.getResult();
+                return kept.subList(Math.min(this.offset, kept.size()), kept.size());
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Replays the items kept so far into the new strategy. Both strategies keep
+     * limit + offset items, the offset is skipped by getResult.
+     */
+    private void switchTo(Strategy newStrategy, List<E> items) {
+        this.heap = null;
+        this.limitSort = null;
+        this.strategy = newStrategy;
+        switch (newStrategy) {
+            case HEAP:
+                this.heap = new TopNHeap<>(r -> r, this.cmp, this.keep, 0);
+                items.forEach(this.heap::offer);
+                break;
+            case LIMIT_SORT:
+                this.limitSort = new LimitSort<>(this.cmp, this.keep, 0);
+                items.forEach(this.limitSort::offer);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot switch to " + newStrategy);
+        }
+    }
+}
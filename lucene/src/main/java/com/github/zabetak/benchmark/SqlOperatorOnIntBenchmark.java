@@ -22,6 +22,7 @@ import com.github.zabetak.indexer.RandomIntValueFieldFactory;
 import com.github.zabetak.query.IsNullIntQueryFactory;
 import com.github.zabetak.query.NotEqualIntQueryFactory;
 import com.github.zabetak.query.NotNullIntQueryFactory;
+import com.github.zabetak.query.ThresholdTopIntCollector;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.document.NumericDocValuesField;
@@ -180,6 +181,12 @@ public class SqlOperatorOnIntBenchmark {
         public SearchMode searchMode;
     }
 
+    @State(Scope.Benchmark)
+    public static class SortFieldState {
+        @Param
+        public QueryField queryField;
+    }
+
     @State(Scope.Benchmark)
     public static class NotEqualState {
         @Param
@@ -224,6 +231,23 @@ public class SqlOperatorOnIntBenchmark {
         qState.searchMode.execute(iState.searcher, q, field.sort, TOP_K);
     }
 
+    /**
+     * Benchmark alternative ways to evaluate the IS NOT NULL operator, when only the top-k
+     * documents sorted by the field are needed.
+     *
+     * <p>
+     * In contrast to {@link SearchMode#SORT_K}, the collector uses the value of the k-th document
+     * as a threshold, and skips the segments whose values cannot beat it.
+     * </p>
+     */
+    @Benchmark
+    public void isNotNullSortThreshold(IsNotNullState notNullState, SortFieldState sState, IndexState iState)
+            throws IOException {
+        final QueryField field = sState.queryField;
+        Query q = notNullState.queryFactory.create(field.fieldName);
+        iState.searcher.search(q, new ThresholdTopIntCollector(field.fieldName, TOP_K));
+    }
+
     /**
      * Benchmark alternative ways to evaluate the IS NULL operator.
      */
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.zabetak.query;
+
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.io.IOException;
+import java.util.function.LongConsumer;
+
+/**
+ * A collector of the k documents with the smallest values of an integer field, that is the
+ * same result as sorting by {@code new SortField(field, SortField.Type.INT)} with missing values
+ * last. Ties are broken by the document id.
+ * <p>
+ * Once k documents are collected, the biggest of them is the threshold that any other document
+ * has to beat. The threshold only decreases and is published through
+ * {@link #currentThreshold()} and an optional listener. The collector uses it to terminate the
+ * collection of a segment early:
+ * <ul>
+ *     <li>when the field is also indexed as an {@link IntPoint} and the minimum value of the
+ *     segment is not smaller than the threshold, the whole segment is skipped;</li>
+ *     <li>when the segment is sorted by the field, the collection stops at the first document
+ *     that is not smaller than the threshold.</li>
+ * </ul>
+ * </p>
+ */
+public final class ThresholdTopIntCollector implements Collector {
+
+    private static final long MISSING_VALUE = Long.MAX_VALUE;
+
+    private static final class Entry {
+        long value;
+        int doc;
+    }
+
+    private final String field;
+    private final int numHits;
+    private final PriorityQueue<Entry> queue;
+    private LongConsumer thresholdListener;
+    private int totalHits = 0;
+    private int skippedSegments = 0;
+
+    public ThresholdTopIntCollector(String field, int numHits) {
+        if (numHits <= 0)
+            throw new IllegalArgumentException("Number of hits (" + numHits + ") must be positive.");
+        this.field = field;
+        this.numHits = numHits;
+        // the top of the queue is the biggest entry, that is the threshold
+        this.queue = new PriorityQueue<Entry>(numHits) {
+            @Override
+            protected boolean lessThan(Entry a, Entry b) {
+                return a.value > b.value || (a.value == b.value && a.doc > b.doc);
+            }
+        };
+    }
+
+    /**
+     * Sets a listener that is called with the new threshold whenever it changes.
+     */
+    public void setThresholdListener(LongConsumer listener) {
+        this.thresholdListener = listener;
+    }
+
+    /**
+     * Returns the value that the field of a document has to be smaller than to be collected, or
+     * {@link Long#MAX_VALUE} as long as fewer than k documents have been collected.
+     */
+    public long currentThreshold() {
+        return queue.size() < numHits ? Long.MAX_VALUE : queue.top().value;
+    }
+
+    /**
+     * Returns the number of segments that were skipped entirely because of the threshold.
+     */
+    public int getSkippedSegments() {
+        return skippedSegments;
+    }
+
+    /**
+     * Returns the collected documents, sorted by the value of the field. The total hits are a
+     * lower bound, since the documents of the skipped segments are not counted.
+     */
+    public TopDocs topDocs() {
+        ScoreDoc[] docs = new ScoreDoc[queue.size()];
+        for (int i = docs.length - 1; i >= 0; i--) {
+            Entry e = queue.pop();
+            docs[i] = new FieldDoc(e.doc, Float.NaN, new Object[]{e.value});
+        }
+        return new TopDocs(new TotalHits(totalHits, TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO), docs);
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+        LeafReader reader = context.reader();
+        if (queue.size() >= numHits) {
+            PointValues points = reader.getPointValues(field);
+            if (points != null && points.getBytesPerDimension() == Integer.BYTES
+                    && IntPoint.decodeDimension(points.getMinPackedValue(), 0) >= currentThreshold()) {
+                skippedSegments++;
+                throw new CollectionTerminatedException();
+            }
+        }
+        final boolean sortedSegment = isSortedByField(reader.getMetaData().getSort());
+        final NumericDocValues values = DocValues.getNumeric(reader, field);
+        final int docBase = context.docBase;
+        return new LeafCollector() {
+            @Override
+            public void setScorer(Scorable scorer) throws IOException {
+
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                totalHits++;
+                long value = values.advanceExact(doc) ? values.longValue() : MISSING_VALUE;
+                if (queue.size() < numHits) {
+                    Entry e = new Entry();
+                    e.value = value;
+                    e.doc = docBase + doc;
+                    queue.add(e);
+                    if (queue.size() == numHits)
+                        thresholdChanged();
+                    return;
+                }
+                // documents of this segment come after the ones in the queue, so ties lose
+                if (value >= queue.top().value) {
+                    // the index sort may put the missing values anywhere, but the others are ascending
+                    if (sortedSegment && value != MISSING_VALUE)
+                        throw new CollectionTerminatedException();
+                    return;
+                }
+                Entry e = queue.top();
+                e.value = value;
+                e.doc = docBase + doc;
+                queue.updateTop();
+                thresholdChanged();
+            }
+        };
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        return ScoreMode.COMPLETE_NO_SCORES;
+    }
+
+    private boolean isSortedByField(Sort sort) {
+        if (sort == null)
+            return false;
+        SortField first = sort.getSort()[0];
+        return field.equals(first.getField()) && first.getType() == SortField.Type.INT && !first.getReverse();
+    }
+
+    private void thresholdChanged() {
+        if (thresholdListener != null)
+            thresholdListener.accept(queue.top().value);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.zabetak.query;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ThresholdTopIntCollectorTest {
+    private static final String FIELD_NAME = "age";
+    private static final int SEGMENTS = 4;
+    private static final int DOCS_PER_SEGMENT = 100;
+
+    @Test
+    public void testSameResultAsSort() throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath("unsorted"))) {
+            createIndex(dir, null);
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (int k : new int[]{1, 5, 50, 1000}) {
+                    ThresholdTopIntCollector collector = new ThresholdTopIntCollector(FIELD_NAME, k);
+                    searcher.search(new MatchAllDocsQuery(), collector);
+                    assertThat(docIds(collector.topDocs()), is(docIds(searcher.search(new MatchAllDocsQuery(), k,
+                            sort()))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSkipsSegmentsAboveThreshold() throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath("unsorted"))) {
+            createIndex(dir, null);
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                ThresholdTopIntCollector collector = new ThresholdTopIntCollector(FIELD_NAME, 10);
+                searcher.search(new MatchAllDocsQuery(), collector);
+                assertThat(collector.getSkippedSegments(), is(SEGMENTS - 1));
+                assertThat(collector.topDocs().totalHits.value, is((long) DOCS_PER_SEGMENT));
+            }
+        }
+    }
+
+    @Test
+    public void testThresholdIsMonotonic() throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath("unsorted"))) {
+            createIndex(dir, null);
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                ThresholdTopIntCollector collector = new ThresholdTopIntCollector(FIELD_NAME, 10);
+                assertThat(collector.currentThreshold(), is(Long.MAX_VALUE));
+                List<Long> thresholds = new ArrayList<>();
+                collector.setThresholdListener(thresholds::add);
+                searcher.search(new MatchAllDocsQuery(), collector);
+                assertThat(thresholds, not(empty()));
+                for (int i = 1; i < thresholds.size(); i++)
+                    assertThat(thresholds.get(i), lessThan(thresholds.get(i - 1)));
+                assertThat(collector.currentThreshold(), is(thresholds.get(thresholds.size() - 1)));
+            }
+        }
+    }
+
+    @Test
+    public void testTerminatesSortedSegmentEarly() throws IOException {
+        try (Directory dir = FSDirectory.open(indexPath("sorted"))) {
+            createIndex(dir, sort());
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                ThresholdTopIntCollector collector = new ThresholdTopIntCollector(FIELD_NAME, 10);
+                searcher.search(new MatchAllDocsQuery(), collector);
+                TopDocs docs = collector.topDocs();
+                assertThat(docs.totalHits.value, lessThan((long) DOCS_PER_SEGMENT));
+                assertThat(docIds(docs), is(docIds(searcher.search(new MatchAllDocsQuery(), 10, sort()))));
+            }
+        }
+    }
+
+    private static Path indexPath(String name) {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "jmh-lucene-indexes",
+                ThresholdTopIntCollectorTest.class.getSimpleName() + "-" + name);
+    }
+
+    private static Sort sort() {
+        SortField field = new SortField(FIELD_NAME, SortField.Type.INT);
+        field.setMissingValue(Integer.MAX_VALUE);
+        return new Sort(field);
+    }
+
+    /**
+     * Creates one segment per commit, where the values of each segment are bigger than those of
+     * the previous ones. Every tenth document has no value.
+     */
+    private static void createIndex(Directory dir, Sort indexSort) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+        if (indexSort != null)
+            iwc.setIndexSort(indexSort);
+        Random rand = new Random(23);
+        try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+            for (int s = 0; s < SEGMENTS; s++) {
+                for (int i = 0; i < DOCS_PER_SEGMENT; i++) {
+                    Document doc = new Document();
+                    if (i % 10 != 0) {
+                        int value = s * 1000 + rand.nextInt(1000);
+                        doc.add(new IntPoint(FIELD_NAME, value));
+                        doc.add(new NumericDocValuesField(FIELD_NAME, value));
+                    }
+                    writer.addDocument(doc);
+                }
+                writer.commit();
+            }
+        }
+    }
+
+    private static List<Integer> docIds(TopDocs docs) {
+        List<Integer> ids = new ArrayList<>();
+        for (ScoreDoc doc : docs.scoreDocs)
+            ids.add(doc.doc);
+        return ids;
+    }
+}